@@ -8,6 +8,7 @@ import android.view.HapticFeedbackConstants;
 import android.view.MotionEvent;
 import com.zyron.typewriter.event.ScrollEvent;
 import com.zyron.typewriter.text.Editable;
+import com.zyron.typewriter.text.TextCursor;
 import com.zyron.typewriter.view.TextInputConnection;
 import com.zyron.typewriter.widget.CodeEditor;
 
@@ -39,26 +40,31 @@ public class GestureEvent implements GestureDetector.OnGestureListener, GestureD
     };
 
     private String findNearestWord() {
-        int length = editor.getEditable().length();
         Editable editableText = editor.getEditable();
         int selectionStart = editor.getSelectionStart();
         int selectionEnd = editor.getSelectionEnd(); 
         int cursorIndex = editor.getCursorIndex();  
+        TextCursor textCursor = new TextCursor(editableText, cursorIndex);
 
         // select start index
-        for (selectionStart = cursorIndex; selectionStart >= 0; --selectionStart) {
-            char c = editableText.charAt(selectionStart);
-            if (!Character.isJavaIdentifierPart(c)) break;
+        while (textCursor.hasPrevious()) {
+            if (!Character.isJavaIdentifierPart(textCursor.previous())) {
+                textCursor.next();
+                break;
+            }
         }
+        selectionStart = textCursor.getPosition();
 
         // select end index
-        for (selectionEnd = cursorIndex; selectionEnd < length; ++selectionEnd) {
-            char c = editableText.charAt(selectionEnd);
-            if (!Character.isJavaIdentifierPart(c)) break;
+        textCursor.setPosition(cursorIndex);
+        while (textCursor.hasNext()) {
+            if (!Character.isJavaIdentifierPart(textCursor.next())) {
+                textCursor.previous();
+                break;
+            }
         }
+        selectionEnd = textCursor.getPosition();
 
-        // select start index needs to be incremented by 1
-        ++selectionStart;
         if (selectionStart < selectionEnd)
             return editableText.substring(selectionStart, selectionEnd);
         return null;
@@ -193,9 +199,6 @@ public class GestureEvent implements GestureDetector.OnGestureListener, GestureD
                 isCursorVisible = isCursorDropletVisible = true;
                 isSelectable = false;
 
-                if(!editor.getReplaceList().isEmpty()) 
-                    editor.getReplaceList().clear();
-
                 editor.setCursorPositionByCoordinate(x, y);
                 //Log.i(TAG, "mCursorIndex: " + mCursorIndex);
                 editor.invalidate();
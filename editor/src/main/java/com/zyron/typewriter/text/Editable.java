@@ -1,25 +1,41 @@
 package com.zyron.typewriter.text;
 
-import android.text.SpannableStringBuilder;
-import android.util.Log;
+import java.io.File;
+import java.io.IOException;
 import java.lang.CharSequence;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
- * A class representing editable text implements GapBuffer data structure. This class provides functionality for inserting, deleting, appending
+ * A class representing editable text on top of a pluggable {@link EditableStorage}, a GapBuffer by
+ * default. This class provides functionality for inserting, deleting, appending
  * replacing, and managing text selections. It also handles undo/redo operations and line
  * management, including measuring text and handling line breaks.
+ *
+ * The storage is the only copy of the text. Editable is a plain CharSequence with no span
+ * machinery, so it can be used without the Android framework; the input method reaches it through
+ * {@link com.zyron.typewriter.view.TextInputEditable}.
  */
-public class Editable extends SpannableStringBuilder implements CharSequence {
+public class Editable implements CharSequence {
 
-    private EditableCache editableCache;
+    private EditableLineIndex editableLineIndex;
     private EditableStack editableStack;
     private EditableListener editableListener;
-
-    private char[] editableContents;
-    private int editableStartIndex;
-    private int editableEndIndex;
-    private int editableLineCount;
-    private int editableLineLength;
+    private final EditableChangeBus editableChangeBus = new EditableChangeBus();
+    private EditableStorage editableStorage;
+    private EditableSnapshot editableSnapshot;
+    private long editableVersion;
+
+    /* The change that produced version v, kept at index v % HISTORY_SIZE for rebasing edits */
+    private final int[] historyOffset = new int[HISTORY_SIZE];
+    private final int[] historyRemoved = new int[HISTORY_SIZE];
+    private final int[] historyInserted = new int[HISTORY_SIZE];
+
+    private int selectionStart;
+    private int selectionEnd;
     
     private final char BACKSPACE = '\b';
     private final char NEWLINE = '\n';
@@ -30,13 +46,27 @@ public class Editable extends SpannableStringBuilder implements CharSequence {
     private final int DEFAULT_TAB_SIZE = 4;
     private final int MAXIMUM_TAB_SIZE = 8;
 
+    /** The number of past versions edits can be rebased over. */
+    public static final int HISTORY_SIZE = 512;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final Comparator<EditableEdit> EDIT_ORDER = new Comparator<EditableEdit>() {
+        @Override
+        public int compare(EditableEdit a, EditableEdit b) {
+            return Integer.compare(a.getStart(), b.getStart());
+        }
+    };
+
     private static final String TAG = "Editable";
 
     /**
-     * Constructs an empty Editable object with an initial buffer size of 16 characters.
+     * Constructs an empty Editable object backed by a gap buffer with an initial buffer size of 16
+     * characters.
      */
     public Editable() {
-        this(new char[16]);
+        this(new EditableGapBuffer());
     }
 
     /**
@@ -45,46 +75,260 @@ public class Editable extends SpannableStringBuilder implements CharSequence {
      * @param editable The initial content of the Editable object.
      */
     public Editable(CharSequence editable) {
+        this(new EditableGapBuffer());
         if (editable != null) {
             insert(0, editable, false);
         }
     }
 
     /**
-     * Constructs an Editable object with the specified character array as initial content.
+     * Constructs an Editable object with the specified character array as initial content. The
+     * array is taken over by the underlying gap buffer and must not be modified afterwards.
      *
      * @param editable The initial content of the Editable object as a character array.
      */
     public Editable(char[] editable) {
-        editableContents = (editable != null) ? editable : new char[16];
-        editableLineCount = 1;
-        editableLineLength = 0;
-        editableStartIndex = 0;
-        editableEndIndex = editableContents.length;
-        editableCache = new EditableCache();
+        this(new EditableGapBuffer(editable));
+    }
+
+    /**
+     * Constructs an Editable object on top of the specified storage, whose current content becomes
+     * the initial content. This is how a storage other than the default gap buffer is selected,
+     * for example an {@link EditablePieceTable} for very large files, or an {@link EditableRope}
+     * when background readers take frequent {@link #snapshot() snapshots} of the text.
+     *
+     * @param storage The storage holding the characters of this Editable object.
+     */
+    public Editable(EditableStorage storage) {
+        editableStorage = (storage != null) ? storage : new EditableGapBuffer();
+        editableLineIndex = new EditableLineIndex();
         editableStack = new EditableStack(this);
+        indexLines();
+    }
 
-        for (char c : editableContents) {
-            if (c == NEWLINE) {
-                editableLineCount++;
+    /**
+     * Builds the line index from the current storage content, reading it in chunks.
+     */
+    private void indexLines() {
+        int length = editableStorage.length();
+        char[] chunk = new char[Math.min(length, 8192)];
+        for (int offset = 0; offset < length; offset += chunk.length) {
+            int count = Math.min(chunk.length, length - offset);
+            editableStorage.getChars(offset, offset + count, chunk, 0);
+            editableLineIndex.insert(offset, chunk, 0, count);
+        }
+    }
+
+    /**
+     * Returns the storage holding the characters of this Editable object.
+     *
+     * @return The storage.
+     */
+    public EditableStorage getStorage() {
+        return editableStorage;
+    }
+
+    /**
+     * Returns the version of the text. It starts at 0 and goes up by one with every insert or
+     * delete that changes the text.
+     *
+     * @return The version number.
+     */
+    public synchronized long getVersion() {
+        return editableVersion;
+    }
+
+    /**
+     * Returns an immutable snapshot of the current text and its lines, tagged with the current
+     * version. The snapshot can be read from any thread without locking while this Editable keeps
+     * changing. With an {@link EditableRope} storage this costs O(1); other storages copy the text
+     * once per version, and later calls at the same version return the same snapshot.
+     *
+     * @return The snapshot.
+     */
+    public synchronized EditableSnapshot snapshot() {
+        if (editableSnapshot == null || editableSnapshot.getVersion() != editableVersion) {
+            if (editableStorage instanceof EditableRope) {
+                editableSnapshot = ((EditableRope) editableStorage).snapshot(editableVersion);
+            } else {
+                char[] chars = new char[editableStorage.length()];
+                editableStorage.getChars(0, chars.length, chars, 0);
+                editableSnapshot = new EditableArraySnapshot(editableVersion, chars);
             }
         }
+        return editableSnapshot;
+    }
+
+    /**
+     * Moves to the next version, remembering the change that produced it.
+     */
+    private void recordChange(int offset, int removed, int inserted) {
+        int index = (int) (++editableVersion % HISTORY_SIZE);
+        historyOffset[index] = offset;
+        historyRemoved[index] = removed;
+        historyInserted[index] = inserted;
+
+        if (editableChangeBus.hasSubscribers()) {
+            editableChangeBus.publish(new EditableChange(offset, removed, inserted, editableVersion));
+        }
     }
 
     /**
-     * Sets a listener to be notified of changes to the Editable object.
+     * Applies edits that were computed against an earlier version of the text, typically on a
+     * worker thread from a {@link #snapshot()}. The offsets of every edit refer to the text at
+     * `baseVersion`. If the text has changed since, they are moved over the changes made in
+     * between; an edit whose range was touched by one of those changes cannot be moved, and
+     * neither can edits older than {@link #HISTORY_SIZE} versions.
+     *
+     * The edits must not overlap. They are applied all together or not at all, as a single undo
+     * unit, and the listener is notified once from the calling thread, like an
+     * {@link EditableTransaction}.
      *
-     * @param editableListener The listener to be notified of changes.
+     * @param baseVersion The version the edits were computed against.
+     * @param edits       The edits to apply.
+     * @return `true` if the edits were applied, `false` if they could not be rebased onto the
+     * current text and nothing was changed.
+     */
+    public synchronized boolean applyEdits(long baseVersion, List<EditableEdit> edits) {
+        EditableTransaction transaction = new EditableTransaction(this, baseVersion);
+        for (EditableEdit edit : edits) {
+            transaction.add(edit);
+        }
+        return transaction.commit();
+    }
+
+    /**
+     * Starts a transaction against the current version of the text. Edits added to it change
+     * nothing until {@link EditableTransaction#commit()}, which applies them all in one pass.
+     *
+     * @return A new, empty transaction.
+     */
+    public synchronized EditableTransaction beginTransaction() {
+        return new EditableTransaction(this, editableVersion);
+    }
+
+    /**
+     * Applies the edits of a transaction, from the last to the first so that the offsets of the
+     * rest stay valid. The storage and the line index see each edit once, in a single sweep; the
+     * version, the selection and the listener only see the span from the first edit to the last.
      */
-    public void setEditableListener(EditableListener editableListener) {
+    synchronized boolean commit(EditableTransaction transaction) {
+        long baseVersion = transaction.getBaseVersion();
+        if (baseVersion > editableVersion || editableVersion - baseVersion > HISTORY_SIZE) {
+            EditableLog.e(TAG, "Cannot rebase edits from version " + baseVersion + " to " + editableVersion);
+            return false;
+        }
+
+        EditableEdit[] rebased = transaction.getEdits().toArray(new EditableEdit[0]);
+        for (long version = baseVersion + 1; version <= editableVersion; ++version) {
+            int index = (int) (version % HISTORY_SIZE);
+            for (int i = 0; i < rebased.length; ++i) {
+                rebased[i] = rebase(rebased[i], historyOffset[index], historyRemoved[index], historyInserted[index]);
+                if (rebased[i] == null) {
+                    return false;
+                }
+            }
+        }
+
+        Arrays.sort(rebased, EDIT_ORDER);
+        for (int i = 0; i < rebased.length; ++i) {
+            int limit = (i + 1 < rebased.length) ? rebased[i + 1].getStart() : length();
+            if (rebased[i].getEnd() > limit) {
+                EditableLog.e(TAG, "Edits overlap or are out of bounds");
+                return false;
+            }
+        }
+
+        int count = rebased.length;
+        int[] starts = new int[count];
+        int[] ends = new int[count];
+        int[] lengths = new int[count];
+        boolean changed = false;
+        boolean isBatchEdit = isBatchEdit();
+        if (!isBatchEdit) {
+            beginBatchEdit();
+        }
         try {
-            if (editableListener == null) {
-                throw new IllegalArgumentException("listener can not be null");
+            long timestamp = System.nanoTime();
+            for (int i = count - 1; i >= 0; --i) {
+                int start = starts[i] = rebased[i].getStart();
+                int end = ends[i] = rebased[i].getEnd();
+                char[] chars = getEditableChars(rebased[i].getText());
+                lengths[i] = chars.length;
+                if (start < end) {
+                    editableStack.captureDelete(start, end, timestamp);
+                    editableStorage.delete(start, end);
+                    editableLineIndex.delete(start, end);
+                    changed = true;
+                }
+                if (chars.length > 0) {
+                    editableStack.captureInsert(start, start + chars.length, timestamp);
+                    editableStorage.insert(start, chars, 0, chars.length);
+                    editableLineIndex.insert(start, chars, 0, chars.length);
+                    changed = true;
+                }
+            }
+        } finally {
+            if (!isBatchEdit) {
+                endBatchEdit();
             }
-            this.editableListener = editableListener;
-        } catch (IllegalArgumentException e) {
-            Log.e(TAG, "Error setting listener: " + e.getMessage());
         }
+        transaction.setApplied(starts, ends, lengths);
+        if (!changed) {
+            return true;
+        }
+
+        int windowStart = starts[0];
+        int windowEnd = ends[count - 1];
+        int windowLength = transaction.mapOffset(windowEnd) - windowStart;
+        recordChange(windowStart, windowEnd - windowStart, windowLength);
+        selectionStart = transaction.mapOffset(selectionStart);
+        selectionEnd = transaction.mapOffset(selectionEnd);
+
+        if (editableListener != null) {
+            editableListener.onReplaced(windowStart, windowEnd,
+                    new EditableWindow(this, windowStart, windowStart + windowLength));
+        }
+        return true;
+    }
+
+    /**
+     * Moves an edit over a change that removed `removed` characters at `offset` and inserted
+     * `inserted` in their place.
+     *
+     * @return The moved edit, or null if the change touched the range of the edit.
+     */
+    private static EditableEdit rebase(EditableEdit edit, int offset, int removed, int inserted) {
+        int start = edit.getStart();
+        int end = edit.getEnd();
+        if (offset + removed <= start) {
+            int delta = inserted - removed;
+            return new EditableEdit(start + delta, end + delta, edit.getText());
+        } else if (offset >= end) {
+            return edit;
+        }
+        return null;
+    }
+
+    /**
+     * Sets a listener to be notified of changes to the Editable object. The listener is called
+     * from inside every edit; subscribe to {@link #getChangeBus()} instead for work that must not
+     * slow typing down.
+     *
+     * @param editableListener The listener to be notified of changes, or null to remove it.
+     */
+    public synchronized void setEditableListener(EditableListener editableListener) {
+        this.editableListener = editableListener;
+    }
+
+    /**
+     * Returns the bus that delivers compact change records to any number of subscribers, each on
+     * its own executor and at its own pace.
+     *
+     * @return The change bus of this Editable.
+     */
+    public EditableChangeBus getChangeBus() {
+        return editableChangeBus;
     }
 
     /**
@@ -112,58 +356,70 @@ public class Editable extends SpannableStringBuilder implements CharSequence {
     public synchronized Editable insert(
             int offset, CharSequence text, boolean capture, long timestamp) {
         try {
-            int length = text.length();
+            if (!isValid(offset)) {
+                throw new IndexOutOfBoundsException("offset " + offset + " out of bounds");
+            }
+            char[] chars = getEditableChars(text);
+            int length = chars.length;
             if (capture && length > 0) {
                 editableStack.captureInsert(offset, offset + length, timestamp);
             }
 
-            int insertIndex = getRealIndex(offset);
-
-            if (insertIndex != editableEndIndex) {
-                if (isBeforeEditable(insertIndex)) {
-                    shiftEditableLeft(insertIndex);
-                } else {
-                    shiftEditableRight(insertIndex);
-                }
-            }
-
-            if (length >= editableSize()) {
-                expandBuffer(length - editableSize());
-            }
-
-            for (int i = 0; i < length; ++i) {
-                char c = text.charAt(i);
-                if (c == BACKSPACE) {
-                    --editableStartIndex;
-                } else if (c == TAB) {
-                    for (int j = 0; j < DEFAULT_TAB_SIZE; j++) {
-                        editableContents[editableStartIndex] = ' ';
-                        ++editableStartIndex;
-                    }
-                } else {
-                    if (c == NEWLINE) {
-                        ++editableLineCount;
-                    }
-                    editableContents[editableStartIndex] = c;
-                    ++editableStartIndex;
-                }
+            editableStorage.insert(offset, chars, 0, length);
+            editableLineIndex.insert(offset, chars, 0, length);
+            if (length > 0) {
+                recordChange(offset, 0, length);
             }
+            selectionStart = selectionEnd = offset + length;
 
             if (editableListener != null) {
                 editableListener.onInserted(offset, text);
             }
-
-            editableCache.invalidateCache(offset);
             return Editable.this;
         } catch (IndexOutOfBoundsException e) {
-            Log.e(TAG, "Index out of bounds: " + e.getMessage());
+            EditableLog.e(TAG, "Index out of bounds: " + e.getMessage());
             return this;
         } catch (IllegalArgumentException e) {
-            Log.e(TAG, "Illegal argument: " + e.getMessage());
+            EditableLog.e(TAG, "Illegal argument: " + e.getMessage());
             return this;
         }
     }
 
+    /**
+     * Converts text about to be inserted into the characters actually stored. Tabs are expanded to
+     * spaces and a backspace removes the character written before it.
+     *
+     * @param text The text to insert.
+     * @return The characters to store.
+     */
+    private char[] getEditableChars(CharSequence text) {
+        int length = text.length();
+        int tabs = 0;
+        for (int i = 0; i < length; ++i) {
+            if (text.charAt(i) == TAB) {
+                ++tabs;
+            }
+        }
+
+        char[] chars = new char[length + tabs * (DEFAULT_TAB_SIZE - 1)];
+        int count = 0;
+        for (int i = 0; i < length; ++i) {
+            char c = text.charAt(i);
+            if (c == BACKSPACE) {
+                if (count > 0) {
+                    --count;
+                }
+            } else if (c == TAB) {
+                for (int j = 0; j < DEFAULT_TAB_SIZE; j++) {
+                    chars[count++] = ' ';
+                }
+            } else {
+                chars[count++] = c;
+            }
+        }
+        return count == chars.length ? chars : Arrays.copyOf(chars, count);
+    }
+
     /**
      * Appends the specified CharSequence to the end of the Editable object.
      *
@@ -176,7 +432,7 @@ public class Editable extends SpannableStringBuilder implements CharSequence {
             insert(length(), text, capture);
             return Editable.this;
         } catch (IllegalArgumentException e) {
-            Log.e(TAG, "Illegal argument: " + e.getMessage());
+            EditableLog.e(TAG, "Illegal argument: " + e.getMessage());
             return this;
         }
     }
@@ -195,7 +451,7 @@ public class Editable extends SpannableStringBuilder implements CharSequence {
             }
             return Editable.this;
         } catch (IllegalArgumentException e) {
-            Log.e(TAG, "Illegal argument: " + e.getMessage());
+            EditableLog.e(TAG, "Illegal argument: " + e.getMessage());
             return this;
         }
     }
@@ -224,34 +480,26 @@ public class Editable extends SpannableStringBuilder implements CharSequence {
      */
     public synchronized Editable delete(int start, int end, boolean capture, long timestamp) {
         try {
+            if (start < 0 || end > length() || start > end) {
+                throw new IndexOutOfBoundsException("range [" + start + ", " + end + ") out of bounds");
+            }
             if (capture && start < end) {
                 editableStack.captureDelete(start, end, timestamp);
             }
 
-            int newEditableStart = end;
-
-            if (newEditableStart != editableStartIndex) {
-                if (isBeforeEditable(newEditableStart)) {
-                    shiftEditableLeft(newEditableStart);
-                } else {
-                    shiftEditableRight(newEditableStart + editableSize());
-                }
+            editableStorage.delete(start, end);
+            editableLineIndex.delete(start, end);
+            if (start < end) {
+                recordChange(start, end - start, 0);
             }
+            selectionStart = selectionEnd = start;
 
-            int len = end - start;
-            for (int i = 0; i < len; ++i) {
-                --editableStartIndex;
-                if (editableContents[editableStartIndex] == NEWLINE) {
-                    --editableLineCount;
-                }
-            }
             if (editableListener != null) {
                 editableListener.onDeleted(start, end);
             }
-            editableCache.invalidateCache(start);
             return Editable.this;
         } catch (IndexOutOfBoundsException e) {
-            Log.e(TAG, "Index out of bounds: " + e.getMessage());
+            EditableLog.e(TAG, "Index out of bounds: " + e.getMessage());
             return this;
         }
     }
@@ -274,304 +522,296 @@ public class Editable extends SpannableStringBuilder implements CharSequence {
             }
             return Editable.this;
         } catch (IllegalArgumentException e) {
-            Log.e(TAG, "Illegal argument: " + e.getMessage());
+            EditableLog.e(TAG, "Illegal argument: " + e.getMessage());
             return this;
         }
     }
 
     /**
-     * Returns a string of text corresponding to the line with the specified index.
+     * Replaces the characters in the specified range with the given CharSequence, capturing the
+     * operation in the undo stack.
      *
-     * @param targetLineIndex The line index of interest (1-based).
-     * @return The text on the specified line, or an empty string if the line does not exist.
+     * @param start The starting offset of the range to replace (inclusive).
+     * @param end   The ending offset of the range to replace (exclusive).
+     * @param text  The CharSequence to replace the range with.
+     * @return This Editable object.
      */
-    public synchronized String getLineString(int targetLineIndex) {
-        try {
-            int startIndex = getLineStart(targetLineIndex);
-            int endIndex = getLineLength(targetLineIndex);
-
-            return substring(startIndex, startIndex + endIndex);
-        } catch (IllegalArgumentException e) {
-            Log.e(TAG, "Error getting line: " + e.getMessage());
-            return "";
-        }
+    public synchronized Editable replace(int start, int end, CharSequence text) {
+        return replace(start, end, text, true);
     }
 
     /**
-     * Gets the character offset of the first character of the line with the specified index. The
-     * offset is counted from the beginning of the text.
+     * Replaces the matches of a finder as a single edit and a single undo unit. The new text from
+     * the first match to the last is built in one pass and takes the place of the old one in one
+     * operation, so the storage moves its gap once and the listeners hear of one change. The undo
+     * history keeps the offsets of the matches, what they held and what replaced them rather than
+     * a pair of actions per match. Only the matches are read again, never the rest of the text, so
+     * nothing here runs longer than the search that verified them. Replacements are stored as
+     * {@link #insert} would store them, with tabs expanded.
      *
-     * @param targetLineIndex The index of the line of interest.
-     * @return The character offset of the line, or -1 if the line does not exist.
+     * @param starts      The starts of the matches, in ascending order and not overlapping.
+     * @param ends        The ends of the matches.
+     * @param count       The number of matches.
+     * @param pattern     The pattern that found the matches, or null if `replacement` is used as
+     *                    is. With a pattern, `$n` and `${name}` in the replacement stand for the
+     *                    groups of each match and `\` escapes the next character, as with
+     *                    {@link Matcher#appendReplacement(StringBuffer, String)}.
+     * @param replacement The replacement.
+     * @return The number of matches replaced, or -1 if the replacement refers to a group the
+     * pattern does not have or a match no longer matches.
      */
-    public synchronized int getLineStart(int targetLineIndex) {
+    synchronized int replaceAll(int[] starts, int[] ends, int count, Pattern pattern, String replacement) {
+        if (count == 0) {
+            return 0;
+        }
         try {
-            if (targetLineIndex <= 0 || targetLineIndex > getLineCount()) {
-                throw new IllegalArgumentException("line index is invalid");
+            int length = length();
+            for (int i = 0; i < count; ++i) {
+                if (starts[i] > ends[i] || ends[i] > length || (i > 0 ? ends[i - 1] : 0) > starts[i]) {
+                    throw new IndexOutOfBoundsException("match [" + starts[i] + ", " + ends[i] + ") out of bounds");
+                }
             }
-
-            int currentLineIndex = --targetLineIndex;
-            EditablePair<Integer, Integer> cacheEntry = editableCache.getNearestLine(currentLineIndex);
-            int cacheLine = cacheEntry.first;
-            int cacheOffset = cacheEntry.second;
-
-            int offset = 0;
-            if (currentLineIndex > cacheLine) {
-                offset = getCharOffsetStart(currentLineIndex, cacheLine, cacheOffset);
-            } else if (currentLineIndex < cacheLine) {
-                offset = getCharOffsetEnd(currentLineIndex, cacheLine, cacheOffset);
-            } else {
-                offset = cacheOffset;
+            boolean literal = pattern == null
+                    || (replacement.indexOf('$') < 0 && replacement.indexOf('\\') < 0);
+
+            // Stored like any other inserted text, so undo and redo record what was stored
+            String[] replacements = new String[count];
+            String stored = literal ? new String(getEditableChars(replacement)) : null;
+            int delta = 0;
+            Matcher matcher = literal ? null : pattern.matcher(new EditableWindow(this, 0, length));
+            for (int i = 0; i < count; ++i) {
+                if (literal) {
+                    replacements[i] = stored;
+                } else {
+                    // Match again, over the match alone, to read its groups
+                    matcher.region(starts[i], ends[i]).useTransparentBounds(true);
+                    if (!matcher.matches()) {
+                        matcher.region(starts[i], ends[i]).useTransparentBounds(false);
+                        if (!matcher.matches()) {
+                            throw new IllegalArgumentException("match at " + starts[i] + " no longer matches");
+                        }
+                    }
+                    replacements[i] = new String(getEditableChars(expandReplacement(matcher, replacement)));
+                }
+                delta += replacements[i].length() - (ends[i] - starts[i]);
             }
 
-            if (offset >= 0) {
-                editableCache.updateEntry(currentLineIndex, offset);
+            int windowStart = starts[0];
+            int windowEnd = ends[count - 1];
+            char[] chars = new char[windowEnd - windowStart + delta];
+            int read = windowStart;
+            int written = 0;
+            for (int i = 0; i < count; ++i) {
+                editableStorage.getChars(read, starts[i], chars, written);
+                written += starts[i] - read;
+                replacements[i].getChars(0, replacements[i].length(), chars, written);
+                written += replacements[i].length();
+                read = ends[i];
             }
-            return offset;
-        } catch (IllegalArgumentException e) {
-            Log.e(TAG, "Error getting line offset: " + e.getMessage());
+
+            editableStack.captureReplace(this, starts, ends, replacements, count, System.nanoTime());
+            replaceChars(windowStart, windowEnd, chars);
+            return count;
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            EditableLog.e(TAG, "Invalid replacement: " + e.getMessage());
             return -1;
         }
     }
 
     /**
-     * Gets the character offset of the end of the specified line.
-     *
-     * @param targetLineIndex The line index (1-based).
-     * @return The character offset of the end of the line, or -1 if the line index is invalid.
-     */
-	public synchronized int getLineEnd(int targetLineIndex) {
-		if(targetLineIndex < 0 || targetLineIndex >= getLineCount()){
-			throw new IndexOutOfBoundsException("line index out of bounds");
-		}
-        
-		if(targetLineIndex == getLineCount() - 1){
-			return editableContents.length;
-		}
-		return getLineStart(targetLineIndex + 1);
-	}    
-
-    private int indexFirstOf(CharSequence s, int start, char c) {
-        for (int i = start; i < s.length(); i++) {
-            if (s.charAt(i) == c) {
-                return i;
-            }
-        }
-        return -1;
-    }
-    
-	private int indexLastOf(CharSequence s,int start,char c){
-		for(int i = start; i >= 0; i--) {
-			if(s.charAt(i)==c){
-				return i;
-			}
-		}
-		return -1;
-	}
-    
-    /*
-     * Precondition: startOffset is the offset of startLine
+     * Expands the group references of a replacement for the current match of a matcher. Done by
+     * hand because appending to a StringBuilder needs a newer Matcher than the minimum SDK has.
      */
-    private int getCharOffsetStart(int targetLine, int startLine, int startOffset) {
-        assert isValid(startOffset);
-
-        int currLine = startLine;
-        int offset = getRealIndex(startOffset);
-
-        while ((currLine < targetLine) && (offset < editableContents.length)) {
-            if (editableContents[offset] == NEWLINE) {
-                ++currLine;
-            }
-            ++offset;
-
-            if (offset == editableStartIndex) {
-                offset = editableEndIndex;
+    private static String expandReplacement(Matcher matcher, String replacement) {
+        StringBuilder result = new StringBuilder(replacement.length());
+        int length = replacement.length();
+        for (int i = 0; i < length; ++i) {
+            char c = replacement.charAt(i);
+            if (c == '\\') {
+                if (++i == length) {
+                    throw new IllegalArgumentException("character to be escaped is missing");
+                }
+                result.append(replacement.charAt(i));
+            } else if (c == '$') {
+                if (++i == length) {
+                    throw new IllegalArgumentException("group index is missing");
+                }
+                String group;
+                if (replacement.charAt(i) == '{') {
+                    int close = replacement.indexOf('}', i);
+                    if (close < 0) {
+                        throw new IllegalArgumentException("named group is missing trailing '}'");
+                    }
+                    group = matcher.group(replacement.substring(i + 1, close));
+                    i = close;
+                } else {
+                    int number = replacement.charAt(i) - '0';
+                    if (number < 0 || number > 9) {
+                        throw new IllegalArgumentException("illegal group reference");
+                    }
+                    // Take more digits only while they still name a group, like Matcher does
+                    while (i + 1 < length) {
+                        int digit = replacement.charAt(i + 1) - '0';
+                        if (digit < 0 || digit > 9 || number * 10 + digit > matcher.groupCount()) {
+                            break;
+                        }
+                        number = number * 10 + digit;
+                        i++;
+                    }
+                    group = matcher.group(number);
+                }
+                if (group != null) {
+                    result.append(group);
+                }
+            } else {
+                result.append(c);
             }
         }
-
-        if (currLine != targetLine) {
-            return -1;
-        }
-        return getLogicalIndex(offset);
+        return result.toString();
     }
 
     /*
-     * Precondition: endOffset is the offset of endLine
+     * Checks if a snapshot shares its structure with the text instead of copying it.
      */
-    private int getCharOffsetEnd(int targetLine, int endLine, int endOffset) {
-        assert isValid(endOffset);
+    boolean isSnapshotShared() {
+        return editableStorage instanceof EditableRope;
+    }
 
-        if (targetLine == 0) {
-            return 0; 
+    /**
+     * Replaces the characters in the specified range with characters that are stored exactly as
+     * given, without tab expansion and without undo capture. The undo history uses this to replay
+     * a whole undo unit as a single edit with a single notification.
+     *
+     * @param start The starting offset of the range to replace (inclusive).
+     * @param end   The ending offset of the range to replace (exclusive).
+     * @param chars The replacement characters.
+     * @throws IndexOutOfBoundsException if the range is out of bounds.
+     */
+    synchronized void replaceChars(int start, int end, char[] chars) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + ") out of bounds");
         }
-
-        int currLine = endLine;
-        int offset = getRealIndex(endOffset);
-        
-        while (currLine > (targetLine - 1) && offset >= 0) {
-            if (offset == editableEndIndex) {
-                offset = editableStartIndex;
-            }
-            --offset;
-
-            if (editableContents[offset] == NEWLINE) {
-                --currLine;
-            }
+        editableStorage.delete(start, end);
+        editableLineIndex.delete(start, end);
+        editableStorage.insert(start, chars, 0, chars.length);
+        editableLineIndex.insert(start, chars, 0, chars.length);
+        if (start < end || chars.length > 0) {
+            recordChange(start, end - start, chars.length);
         }
+        selectionStart = selectionEnd = start + chars.length;
 
-        int charOffset;
-        if (offset >= 0) {
-            charOffset = getLogicalIndex(offset);
-            ++charOffset;
-        } else {
-            charOffset = -1;
+        if (editableListener != null) {
+            editableListener.onReplaced(start, end, new EditableWindow(this, start, start + chars.length));
         }
-        return charOffset;
     }
-    
+
     /**
-     * Moves `editableStartIndex` by `displacement` units.  A positive displacement moves
-     * `editableStartIndex` to the right, while a negative displacement moves it to the left. This
-     * method is intended for use by `UndoStack` only and does not perform error checking.
+     * Returns a string of text corresponding to the line with the specified index.
      *
-     * @param displacement The number of units to move `editableStartIndex`.
+     * @param targetLineIndex The line index of interest (1-based).
+     * @return The text on the specified line, or an empty string if the line does not exist.
      */
-    public synchronized void shiftEditableStart(int displacement) {
-        if (displacement >= 0)
-            editableLineCount += getCountNewLines(editableStartIndex, displacement);
-        else
-            editableLineCount -= getCountNewLines(editableStartIndex + displacement, -displacement);
+    public synchronized String getLineString(int targetLineIndex) {
+        try {
+            int startIndex = getLineStart(targetLineIndex);
+            int endIndex = getLineLength(targetLineIndex);
 
-        editableStartIndex += displacement;
-        editableCache.invalidateCache(getLogicalIndex(editableStartIndex - 1) + 1);
+            return substring(startIndex, startIndex + endIndex);
+        } catch (IllegalArgumentException e) {
+            EditableLog.e(TAG, "Error getting line: " + e.getMessage());
+            return "";
+        }
     }
 
-    private int getCountNewLines(int start, int totalChars) {
-        int newlines = 0;
-        for (int i = start; i < (start + totalChars); ++i) {
-            if (editableContents[i] == NEWLINE) {
-                ++newlines;
-            }
+    /**
+     * Copies the characters of the specified line, not counting its trailing newline, into `dest`
+     * starting at `destoff`. Nothing is allocated, so a renderer can call this for every visible
+     * line on every frame with one reused array. The length is checked and the line copied under
+     * one lock, so when `dest` is too small nothing is copied and the length is returned for the
+     * caller to grow the array and call again; checking {@link #getLineLength(int)} first would
+     * race with edits from other threads.
+     *
+     * @param targetLineIndex The line index of interest (1-based).
+     * @param dest            The destination array.
+     * @param destoff         The index in `dest` the first character is written to.
+     * @return The length of the line, which was copied only if `dest` could hold it from
+     * `destoff`, or -1 if the line does not exist.
+     */
+    public synchronized int getLineChars(int targetLineIndex, char[] dest, int destoff) {
+        if (targetLineIndex <= 0 || targetLineIndex > getLineCount()) {
+            EditableLog.e(TAG, "Error getting line chars: line index is invalid");
+            return -1;
         }
-
-        return newlines;
+        int start = editableLineIndex.getLineStart(targetLineIndex - 1);
+        int length = getLineLength(targetLineIndex);
+        if (length <= dest.length - destoff) {
+            editableStorage.getChars(start, start + length, dest, destoff);
+        }
+        return length;
     }
 
     /**
-     * Adjusts the gap in the `editableContents` array so that `editableStartIndex` is at
-     * `newEditableStart`. This method is used to shift the gap to the left during deletion
-     * operations.
+     * Gets the character offset of the first character of the line with the specified index. The
+     * offset is counted from the beginning of the text.
      *
-     * @param newEditableStart The new position for `editableStartIndex`.
+     * @param targetLineIndex The index of the line of interest (1-based).
+     * @return The character offset of the line, or -1 if the line does not exist.
      */
-    private void shiftEditableLeft(int newEditableStart) {
-        while (editableStartIndex > newEditableStart) {
-            editableEndIndex--;
-            editableStartIndex--;
-            editableContents[editableEndIndex] = editableContents[editableStartIndex];
+    public synchronized int getLineStart(int targetLineIndex) {
+        try {
+            if (targetLineIndex <= 0 || targetLineIndex > getLineCount()) {
+                throw new IllegalArgumentException("line index is invalid");
+            }
+            return editableLineIndex.getLineStart(targetLineIndex - 1);
+        } catch (IllegalArgumentException e) {
+            EditableLog.e(TAG, "Error getting line offset: " + e.getMessage());
+            return -1;
         }
     }
 
     /**
-     * Adjusts the gap in the `editableContents` array so that `editableEndIndex` is at
-     * `newEditableEnd`. This method is used to shift the gap to the right during insertion
-     * operations.
+     * Gets the character offset of the end of the specified line, just past its newline. For the
+     * last line this is the length of the text.
      *
-     * @param newEditableEnd The new position for `editableEndIndex`.
+     * @param targetLineIndex The line index (1-based).
+     * @return The character offset of the end of the line.
+     * @throws IndexOutOfBoundsException if the line index is invalid.
      */
-    private void shiftEditableRight(int newEditableEnd) {
-        while (editableEndIndex < newEditableEnd) {
-            editableContents[editableStartIndex] = editableContents[editableEndIndex];
-            editableStartIndex++;
-            editableEndIndex++;
+    public synchronized int getLineEnd(int targetLineIndex) {
+        if (targetLineIndex <= 0 || targetLineIndex > getLineCount()) {
+            throw new IndexOutOfBoundsException("line index out of bounds");
         }
+        return editableLineIndex.getLineStart(targetLineIndex);
     }
 
     /**
      * Gets the line number that charOffset is on.
      *
      * @param charOffset The character offset to find the line number for.
-     * @return The line number that charOffset is on, or -1 if charOffset is invalid.
+     * @return The line number that charOffset is on (1-based), or -1 if charOffset is invalid.
      */
     public synchronized int getLineOffset(int charOffset) {
-        try {
-            assert isValid(charOffset);
-
-            EditablePair<Integer, Integer> cachedEntry = editableCache.getNearestCharOffset(charOffset);
-            int line = cachedEntry.first;
-            int offset = getRealIndex(cachedEntry.second);
-            int targetOffset = getRealIndex(charOffset);
-            int lastKnownLine = -1;
-            int lastKnownCharOffset = -1;
-
-            if (targetOffset > offset) {
-                while ((offset < targetOffset) && (offset < editableContents.length)) {
-                    if (editableContents[offset] == NEWLINE) {
-                        ++line;
-                        lastKnownLine = line;
-                        lastKnownCharOffset = getLogicalIndex(offset) + 1;
-                    }
-
-                    ++offset;
-                    if (offset == editableStartIndex) {
-                        offset = editableEndIndex;
-                    }
-                }
-            } else if (targetOffset < offset) {
-                while ((offset > targetOffset) && (offset > 0)) {
-                    if (offset == editableEndIndex) {
-                        offset = editableStartIndex;
-                    }
-                    --offset;
-
-                    if (editableContents[offset] == NEWLINE) {
-                        lastKnownLine = line;
-                        lastKnownCharOffset = getLogicalIndex(offset) + 1;
-                        --line;
-                    }
-                }
-            }
-
-            if (offset == targetOffset) {
-                if (lastKnownLine != -1) {
-                    editableCache.updateEntry(lastKnownLine, lastKnownCharOffset);
-                }
-                return line + 1;
-            } else {
-                return 0;
-            }
-        } catch (AssertionError e) {
-            Log.e(TAG, "Assertion error in getTargetLineIndex: " + e.getMessage());
+        if (!isValid(charOffset)) {
+            EditableLog.e(TAG, "Invalid char offset: " + charOffset);
             return -1;
         }
+        return editableLineIndex.findLine(charOffset) + 1;
     }
 
     /**
-     * Finds the number of characters on the specified line. All valid lines contain at least one
-     * character, which may be a non-printable one like '\n', '\t', or EOF.
+     * Finds the number of characters on the specified line, not counting its trailing newline.
      *
      * @param currentLineIndex The index of the line to find the length of (1-based).
      * @return The number of characters in the line, or 0 if the line does not exist.
      */
     public synchronized int getLineLength(int currentLineIndex) {
-        try {
-            int lineLength = 0;
-            int pos = getLineStart(currentLineIndex);
-            pos = getRealIndex(pos);
-
-            while (pos < editableContents.length && editableContents[pos] != NEWLINE &&
-                    editableContents[pos] != EOF) {
-                ++lineLength;
-                ++pos;
-                if (pos == editableStartIndex) {
-                    pos = editableEndIndex;
-                }
-            }
-            return lineLength;
-        } catch (IllegalArgumentException e) {
-            Log.e(TAG, "Error getting line length: " + e.getMessage());
+        int lineCount = getLineCount();
+        if (currentLineIndex <= 0 || currentLineIndex > lineCount) {
+            EditableLog.e(TAG, "Error getting line length: line index is invalid");
             return 0;
         }
+        int lineLength = editableLineIndex.getLineLength(currentLineIndex - 1);
+        return currentLineIndex < lineCount ? lineLength - 1 : lineLength;
     }
     
     /**
@@ -580,7 +820,7 @@ public class Editable extends SpannableStringBuilder implements CharSequence {
      * @return The line count.
      */
     public synchronized int getLineCount() {
-        return editableLineCount;
+        return editableLineIndex.getLineCount();
     }  
 
     /**
@@ -592,9 +832,9 @@ public class Editable extends SpannableStringBuilder implements CharSequence {
     @Override
     public synchronized char charAt(int charOffset) {
         try {
-            return editableContents[getRealIndex(charOffset)];
-        } catch (ArrayIndexOutOfBoundsException e) {
-            Log.e(TAG, "Array index out of bounds: " + e.getMessage());
+            return editableStorage.charAt(charOffset);
+        } catch (IndexOutOfBoundsException e) {
+            EditableLog.e(TAG, "Index out of bounds: " + e.getMessage());
             return '\0'; 
         }
     }
@@ -616,22 +856,34 @@ public class Editable extends SpannableStringBuilder implements CharSequence {
             if (end > length()) {
                 count = length() - start;
             }
-            int realIndex = getRealIndex(start);
             char[] chars = new char[count];
-
-            for (int i = 0; i < count; ++i) {
-                chars[i] = editableContents[realIndex];
-                if (++realIndex == editableStartIndex) {
-                    realIndex = editableEndIndex;
-                }
-            }
+            editableStorage.getChars(start, start + count, chars, 0);
             return new String(chars);
         } catch (AssertionError e) {
-            Log.e(TAG, "Assertion error in subSequence: " + e.getMessage());
+            EditableLog.e(TAG, "Assertion error in subSequence: " + e.getMessage());
+            return "";
+        } catch (IndexOutOfBoundsException e) {
+            EditableLog.e(TAG, "Index out of bounds in subSequence: " + e.getMessage());
             return "";
         }
     }
 
+    /**
+     * Copies the characters in the range [start, end) into `dest`, starting at `destoff`. This
+     * has the same contract as {@link android.text.GetChars#getChars}. Bulk readers should use
+     * this, or a {@link TextCursor} for character by character scans, rather than
+     * {@link #charAt(int)}, which takes the lock for every character.
+     *
+     * @param start   The starting offset of the range to copy (inclusive).
+     * @param end     The ending offset of the range to copy (exclusive).
+     * @param dest    The destination array.
+     * @param destoff The index in `dest` the first character is written to.
+     * @throws IndexOutOfBoundsException if the range is out of bounds.
+     */
+    public synchronized void getChars(int start, int end, char[] dest, int destoff) {
+        editableStorage.getChars(start, end, dest, destoff);
+    }
+
     /**
      * Returns a string representation of the characters between the specified start and end
      * offsets.
@@ -645,23 +897,8 @@ public class Editable extends SpannableStringBuilder implements CharSequence {
     }
 
     /**
-     * Gets `charCount` number of consecutive characters starting from `editableStartIndex`. This
-     * method is intended for use by `UndoStack` only and does not perform error checking.
-     *
-     * @param charCount The number of characters to retrieve.
-     * @return An array of characters, or an empty array if `charCount` is non-positive.
-     */
-    public char[] editableSubSequence(int charCount) {
-        char[] chars = new char[charCount];
-
-        for (int i = 0; i < charCount; ++i) {
-            chars[i] = editableContents[editableStartIndex + i];
-        }
-        return chars;
-    }
-    
-    /**
-     * Sets the selection range in the Editable object.
+     * Sets the selection range in the Editable object. This only records the offsets and costs
+     * O(1) regardless of the storage.
      *
      * @param start The starting offset of the selection (inclusive).
      * @param end   The ending offset of the selection (exclusive).
@@ -671,15 +908,22 @@ public class Editable extends SpannableStringBuilder implements CharSequence {
             throw new IndexOutOfBoundsException("Invalid selection range: start=" + start + ", end=" + end);
         }
 
-        if (start != editableStartIndex) {
-            if (isBeforeEditable(start)) {
-                shiftEditableLeft(start);
-            } else {
-                shiftEditableRight(start + editableSize());
-            }
-        }
+        selectionStart = start;
+        selectionEnd = end;
+    }
 
-        editableEndIndex = getRealIndex(end);
+    /**
+     * Moves the gap of a gap buffer storage to the specified offset ahead of an edit expected
+     * there, so the edit itself does not have to. Selection changes never move the gap; edits move
+     * it on demand, and this only lets an idle editor do that work early. Has no effect on other
+     * storages.
+     *
+     * @param charOffset The offset the next edit is expected at.
+     */
+    public synchronized void positionGap(int charOffset) {
+        if (isValid(charOffset) && editableStorage instanceof EditableGapBuffer) {
+            ((EditableGapBuffer) editableStorage).moveGap(charOffset);
+        }
     }
 
     /**
@@ -688,7 +932,7 @@ public class Editable extends SpannableStringBuilder implements CharSequence {
      * @return The starting offset of the selection.
      */
     public synchronized int getSelectionStart() {
-        return getLogicalIndex(editableStartIndex);
+        return selectionStart;
     }
 
     /**
@@ -697,7 +941,7 @@ public class Editable extends SpannableStringBuilder implements CharSequence {
      * @return The ending offset of the selection.
      */
     public synchronized int getSelectionEnd() {
-        return getLogicalIndex(editableEndIndex);
+        return selectionEnd;
     }
 
     /**
@@ -718,34 +962,6 @@ public class Editable extends SpannableStringBuilder implements CharSequence {
         return substring(getSelectionStart(), getSelectionEnd());
     }
 
-    /**
-     * Expands the buffer (`editableContents` array) by at least `minIncrement` characters to
-     * accommodate new insertions. The buffer size is doubled on each call to this method to avoid
-     * frequent reallocations.
-     *
-     * @param minIncrement The minimum number of characters to increase the buffer by.
-     */
-    private void expandBuffer(int minIncrement) {
-        int incrSize = Math.max(minIncrement, editableContents.length * 2 + 2);
-        char[] temp = new char[editableContents.length + incrSize];
-        assert temp.length <= Integer.MAX_VALUE;
-
-        int i = 0;
-        while (i < editableStartIndex) {
-            temp[i] = editableContents[i];
-            ++i;
-        }
-
-        i = editableEndIndex;
-        while (i < editableContents.length) {
-            temp[i + incrSize] = editableContents[i];
-            ++i;
-        }
-
-        editableEndIndex += incrSize;
-        editableContents = temp;
-    }
-
     /**
      * Checks if the given character offset is valid (within the bounds of the Editable object).
      *
@@ -756,47 +972,6 @@ public class Editable extends SpannableStringBuilder implements CharSequence {
         return (charOffset >= 0 && charOffset <= this.length());
     }
 
-    /**
-     * Returns the size of the gap in the `editableContents` array.
-     *
-     * @return The number of characters in the gap.
-     */
-    private int editableSize() {
-        return editableEndIndex - editableStartIndex;
-    }
-
-    /**
-     * Converts a logical character offset to a real index in the `editableContents` array.
-     *
-     * @param index The logical character offset.
-     * @return The corresponding real index in the array.
-     */
-    private int getRealIndex(int index) {
-        if (isBeforeEditable(index)) return index;
-        else return index + editableSize();
-    }
-
-    /**
-     * Converts a real index in the `editableContents` array to a logical character offset.
-     *
-     * @param index The real index in the array.
-     * @return The corresponding logical character offset.
-     */
-    private int getLogicalIndex(int index) {
-        if (isBeforeEditable(index)) return index;
-        else return index - editableSize();
-    }
-
-    /**
-     * Checks if the given index is before the start of the gap in the `editableContents` array.
-     *
-     * @param index The index to check.
-     * @return `true` if the index is before the gap, `false` otherwise.
-     */
-    private boolean isBeforeEditable(int index) {
-        return index < editableStartIndex;
-    }
-    
     /**
      * Returns the total number of characters in the Editable object.
      *
@@ -804,7 +979,7 @@ public class Editable extends SpannableStringBuilder implements CharSequence {
      */
     @Override
     public synchronized int length() {
-        return editableContents.length - editableSize();
+        return editableStorage.length();
     }
 
     /**
@@ -814,12 +989,9 @@ public class Editable extends SpannableStringBuilder implements CharSequence {
      */
     @Override
     public synchronized String toString() {
-        StringBuffer buf = new StringBuffer();
-        int len = this.length();
-        for (int i = 0; i < len; i++) {
-            buf.append(charAt(i));
-        }
-        return new String(buf);
+        char[] chars = new char[length()];
+        editableStorage.getChars(0, chars.length, chars, 0);
+        return new String(chars);
     }
 
     /**
@@ -858,6 +1030,158 @@ public class Editable extends SpannableStringBuilder implements CharSequence {
         return editableStack.onRedo();
     }
 
+    /**
+     * Sets how many bytes of text the undo history may hold. When it holds more, the oldest undo
+     * units are dropped, but the most recent one is always kept.
+     *
+     * @param bytes The budget in bytes.
+     */
+    public synchronized void setUndoByteBudget(long bytes) {
+        editableStack.setByteBudget(bytes);
+    }
+
+    /**
+     * Sets a file the undo history spills to, making undo unlimited. Text of undo units beyond the
+     * byte budget, or older than the spill age, is compressed into the file and read back by deep
+     * undos. The file is truncated and belongs to this Editable until another one is set.
+     *
+     * @param file The spill file, or null to stop spilling and drop the spilled history.
+     * @return `true` if the file was set, `false` if it could not be opened.
+     */
+    public synchronized boolean setUndoSpillFile(File file) {
+        try {
+            editableStack.setSpillFile(file);
+            return true;
+        } catch (IOException e) {
+            EditableLog.e(TAG, "Error setting undo spill file: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Sets the age after which undo history is spilled even while within the byte budget. Only
+     * used with an undo spill file.
+     *
+     * @param millis The age in milliseconds, or 0 to spill by size only.
+     */
+    public synchronized void setUndoSpillAge(long millis) {
+        editableStack.setSpillAge(millis * 1000000L);
+    }
+
+    /**
+     * Returns the current revision of the undo history, the number of undo actions applied since
+     * the history began. Unlike {@link #getVersion()}, undoing moves it back.
+     *
+     * @return The current revision.
+     */
+    public synchronized int getRevision() {
+        return editableStack.getRevision();
+    }
+
+    /**
+     * Returns the oldest revision {@link #jumpToRevision(int)} can reach.
+     *
+     * @return The oldest revision.
+     */
+    public synchronized int getOldestRevision() {
+        return editableStack.getOldestRevision();
+    }
+
+    /**
+     * Returns the newest revision {@link #jumpToRevision(int)} can reach, beyond the current one
+     * if there is something to redo.
+     *
+     * @return The newest revision.
+     */
+    public synchronized int getNewestRevision() {
+        return editableStack.getNewestRevision();
+    }
+
+    /**
+     * Brings the text to the specified revision of the undo history as a single edit. The time it
+     * takes is bounded by the checkpoint interval rather than by how far the revision is, so this
+     * suits a history slider. Undo and redo continue from the new revision.
+     *
+     * @param revision The revision to go to.
+     * @return `true` if the text is now at that revision.
+     */
+    public synchronized boolean jumpToRevision(int revision) {
+        return editableStack.jumpTo(revision);
+    }
+
+    /**
+     * Sets the number of revisions between the checkpoints of the undo history. Shorter intervals
+     * make {@link #jumpToRevision(int)} faster at the cost of memory, unless the storage shares
+     * its structure with snapshots.
+     *
+     * @param interval The interval, or 0 to take no checkpoints.
+     */
+    public synchronized void setUndoCheckpointInterval(int interval) {
+        editableStack.setCheckpointInterval(interval);
+    }
+
+    /**
+     * Keeps the undo history of this document in a journal file, so it survives the app being
+     * restarted. The journal is named after the document id; if it was last synced while the
+     * document had its current content, the history from then is restored. Call
+     * {@link #syncUndoJournal()} whenever the document is saved. Replaces any undo spill file.
+     *
+     * @param directory  The directory holding undo journals.
+     * @param documentId A stable identity of the document, such as its path.
+     * @return `true` if history was restored from the journal.
+     */
+    public synchronized boolean openUndoJournal(File directory, String documentId) {
+        long id = hash(documentId);
+        File file = new File(directory, Long.toHexString(id) + ".journal");
+        try {
+            return editableStack.openJournal(file, id, hashContent());
+        } catch (IOException e) {
+            EditableLog.e(TAG, "Error opening undo journal: " + e.getMessage());
+            editableStack.closeJournal();
+            return false;
+        }
+    }
+
+    /**
+     * Marks the current undo history as matching the saved document. Only history synced this way
+     * is restored by {@link #openUndoJournal(File, String)}.
+     */
+    public synchronized void syncUndoJournal() {
+        editableStack.checkpointJournal(hashContent());
+    }
+
+    /**
+     * Closes the undo journal. History that was not synced is lost.
+     */
+    public synchronized void closeUndoJournal() {
+        editableStack.closeJournal();
+    }
+
+    /*
+     * FNV-1a hash of the content, read in chunks to avoid a full copy.
+     */
+    private long hashContent() {
+        char[] chunk = new char[8192];
+        long hash = FNV_OFFSET;
+        int length = editableStorage.length();
+        for (int start = 0; start < length; start += chunk.length) {
+            int end = Math.min(length, start + chunk.length);
+            editableStorage.getChars(start, end, chunk, 0);
+            for (int i = 0; i < end - start; ++i) {
+                hash = (hash ^ chunk[i]) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    private static long hash(CharSequence text) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < text.length(); ++i) {
+            hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
     /**
      * Begins a batch edit, grouping subsequent modifications into a single undo/redo unit.
      */
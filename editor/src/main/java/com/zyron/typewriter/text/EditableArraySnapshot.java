@@ -0,0 +1,80 @@
+package com.zyron.typewriter.text;
+
+import java.util.Arrays;
+
+/**
+ * An {@link EditableSnapshot} over a private copy of the text, used for storages whose content is
+ * not immutable. The line index is built from the copy while it is taken.
+ */
+final class EditableArraySnapshot extends EditableSnapshot {
+
+    private static final char NEWLINE = '\n';
+
+    private final char[] chars;
+    private final int[] lineStarts;
+
+    /**
+     * Constructs a snapshot that takes ownership of the specified characters.
+     *
+     * @param version The version of the Editable the characters were copied at.
+     * @param chars   The copied text.
+     */
+    EditableArraySnapshot(long version, char[] chars) {
+        super(version);
+        this.chars = chars;
+
+        int lineCount = 1;
+        for (char c : chars) {
+            if (c == NEWLINE) {
+                ++lineCount;
+            }
+        }
+        lineStarts = new int[lineCount];
+        int line = 1;
+        for (int i = 0; i < chars.length; ++i) {
+            if (chars[i] == NEWLINE) {
+                lineStarts[line++] = i + 1;
+            }
+        }
+    }
+
+    @Override
+    public int length() {
+        return chars.length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return chars[index];
+    }
+
+    @Override
+    public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+        if (srcBegin < 0 || srcEnd > chars.length || srcBegin > srcEnd) {
+            throw new IndexOutOfBoundsException("range [" + srcBegin + ", " + srcEnd + ") out of bounds");
+        }
+        System.arraycopy(chars, srcBegin, dst, dstBegin, srcEnd - srcBegin);
+    }
+
+    @Override
+    public int getLineCount() {
+        return lineStarts.length;
+    }
+
+    @Override
+    public int getLineStart(int line) {
+        if (line <= 0 || line > lineStarts.length) {
+            throw new IndexOutOfBoundsException("line " + line + " out of bounds");
+        }
+        return lineStarts[line - 1];
+    }
+
+    @Override
+    public int getLineOffset(int charOffset) {
+        if (charOffset < 0 || charOffset > chars.length) {
+            throw new IndexOutOfBoundsException("offset " + charOffset + " out of bounds");
+        }
+        int index = Arrays.binarySearch(lineStarts, charOffset);
+        return (index >= 0) ? index + 1 : -index - 1;
+    }
+}
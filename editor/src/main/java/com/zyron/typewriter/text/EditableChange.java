@@ -0,0 +1,72 @@
+package com.zyron.typewriter.text;
+
+/**
+ * A compact record of one change to an {@link Editable}: `removed` characters at `offset` were
+ * replaced with `inserted` new ones, producing `version`. It holds no text, so it can be queued
+ * and handed to other threads for free; readers that need the text take an
+ * {@link Editable#snapshot()}.
+ */
+public final class EditableChange {
+
+    private final int offset;
+    private final int removed;
+    private final int inserted;
+    private final long version;
+
+    EditableChange(int offset, int removed, int inserted, long version) {
+        this.offset = offset;
+        this.removed = removed;
+        this.inserted = inserted;
+        this.version = version;
+    }
+
+    /**
+     * Returns the offset the change starts at.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the number of characters removed at the offset.
+     */
+    public int getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Returns the number of characters inserted at the offset.
+     */
+    public int getInserted() {
+        return inserted;
+    }
+
+    /**
+     * Returns the version of the Editable right after the change.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns a single change with the same effect on line and offset bookkeeping as this change
+     * followed by `next`: the span from the first offset either touches to the last, rewritten.
+     * If the two do not touch, the text between them counts as removed and inserted again.
+     *
+     * @param next A change made right after this one.
+     * @return The combined change, at the version of `next`.
+     */
+    EditableChange merge(EditableChange next) {
+        int start = Math.min(offset, next.offset);
+        // End of the combined span in the text after this change, then before it
+        int end = Math.max(offset + inserted, next.offset + next.removed);
+        int originalEnd = end - (inserted - removed);
+        return new EditableChange(start, originalEnd - start, end - start + next.inserted - next.removed, next.version);
+    }
+
+    @Override
+    public String toString() {
+        return "EditableChange{offset=" + offset + ", removed=" + removed + ", inserted=" + inserted
+                + ", version=" + version + "}";
+    }
+}
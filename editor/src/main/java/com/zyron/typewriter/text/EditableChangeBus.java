@@ -0,0 +1,221 @@
+package com.zyron.typewriter.text;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fans the changes of an {@link Editable} out to any number of subscribers without holding up the
+ * edit. Publishing only appends an {@link EditableChange} to each subscriber's queue, merging it
+ * into the previous one when they touch; delivery happens later on the executor the subscriber
+ * chose, after the subscriber's coalescing delay, with everything queued meanwhile. A subscriber
+ * is never called again before its previous call returned, so a slow one just receives larger
+ * batches.
+ */
+public final class EditableChangeBus {
+
+    /** Deliver as soon as the executor runs, still batching what was queued in between. */
+    public static final long COALESCE_NONE = 0;
+    /** Deliver at most once per display frame. */
+    public static final long COALESCE_FRAME = 16;
+
+    /*
+     * Runs a delivery on the thread that published the change, inside the edit. With
+     * COALESCE_NONE, subscribers that must follow the text before the edit returns use it.
+     */
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /* Past this many queued changes, every new change is merged into the last one */
+    private static final int MAX_PENDING = 256;
+
+    private static final String TAG = "EditableChangeBus";
+
+    private static ScheduledExecutorService timer;
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Subscribes a listener.
+     *
+     * @param listener       The listener to call.
+     * @param executor       The executor the listener is called on.
+     * @param coalesceMillis How long to collect changes before a call, such as
+     *                       {@link #COALESCE_FRAME}, or {@link #COALESCE_NONE}.
+     */
+    public void subscribe(EditableChangeListener listener, Executor executor, long coalesceMillis) {
+        if (listener == null || executor == null) {
+            throw new IllegalArgumentException("listener and executor can not be null");
+        }
+        if (coalesceMillis < 0) {
+            throw new IllegalArgumentException("coalescing delay can not be negative");
+        }
+        subscribers.add(new Subscriber(listener, executor, coalesceMillis));
+    }
+
+    /**
+     * Unsubscribes a listener. Changes queued for it are dropped, although a call already running
+     * completes.
+     *
+     * @param listener The listener to remove.
+     * @return `true` if the listener was subscribed.
+     */
+    public boolean unsubscribe(EditableChangeListener listener) {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.listener == listener) {
+                subscriber.cancel();
+                return subscribers.remove(subscriber);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if anyone is subscribed.
+     */
+    public boolean hasSubscribers() {
+        return !subscribers.isEmpty();
+    }
+
+    /**
+     * Queues a change for every subscriber. Called by the Editable from inside the edit, so it
+     * only ever queues and schedules.
+     */
+    void publish(EditableChange change) {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.publish(change);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            timer = executor;
+        }
+        return timer;
+    }
+
+    private static final class Subscriber implements Runnable {
+
+        final EditableChangeListener listener;
+        final Executor executor;
+        final long coalesceMillis;
+
+        /* Guarded by this */
+        private List<EditableChange> pending = new ArrayList<>();
+        /* Set from scheduling a delivery until it returned, guarded by this */
+        private boolean busy;
+        private boolean cancelled;
+
+        Subscriber(EditableChangeListener listener, Executor executor, long coalesceMillis) {
+            this.listener = listener;
+            this.executor = executor;
+            this.coalesceMillis = coalesceMillis;
+        }
+
+        void publish(EditableChange change) {
+            boolean schedule;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                int last = pending.size() - 1;
+                if (last >= 0 && (touches(pending.get(last), change) || last + 1 >= MAX_PENDING)) {
+                    pending.set(last, pending.get(last).merge(change));
+                } else {
+                    pending.add(change);
+                }
+                schedule = !busy;
+                busy = true;
+            }
+            if (schedule) {
+                schedule();
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            pending = new ArrayList<>();
+        }
+
+        private void schedule() {
+            try {
+                if (coalesceMillis == COALESCE_NONE) {
+                    executor.execute(this);
+                } else {
+                    getTimer().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            dispatch();
+                        }
+                    }, coalesceMillis, TimeUnit.MILLISECONDS);
+                }
+            } catch (RejectedExecutionException e) {
+                EditableLog.e(TAG, "Error scheduling change delivery: " + e.getMessage());
+                synchronized (this) {
+                    busy = false;
+                }
+            }
+        }
+
+        private void dispatch() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                EditableLog.e(TAG, "Error delivering changes: " + e.getMessage());
+                synchronized (this) {
+                    busy = false;
+                }
+            }
+        }
+
+        /*
+         * Delivers everything queued, on the subscriber's executor.
+         */
+        @Override
+        public void run() {
+            List<EditableChange> changes;
+            synchronized (this) {
+                changes = pending;
+                pending = new ArrayList<>();
+            }
+            try {
+                if (!changes.isEmpty()) {
+                    listener.onChanged(changes);
+                }
+            } finally {
+                boolean schedule;
+                synchronized (this) {
+                    schedule = !pending.isEmpty() && !cancelled;
+                    busy = schedule;
+                }
+                if (schedule) {
+                    schedule();
+                }
+            }
+        }
+
+        private static boolean touches(EditableChange previous, EditableChange next) {
+            return next.getOffset() <= previous.getOffset() + previous.getInserted()
+                    && next.getOffset() + next.getRemoved() >= previous.getOffset();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.zyron.typewriter.text;
+
+import java.util.List;
+
+/**
+ * Subscriber of an {@link EditableChangeBus}. Unlike an {@link EditableListener}, it is not called
+ * from inside the edit but later, on the executor it subscribed with, with every change made
+ * since its previous call.
+ */
+public interface EditableChangeListener {
+
+    /**
+     * Called with the changes made since the previous call, oldest first. Touching changes may
+     * have been merged, and the Editable may already be at a later version.
+     *
+     * @param changes The changes, never empty.
+     */
+    void onChanged(List<EditableChange> changes);
+}
@@ -0,0 +1,230 @@
+package com.zyron.typewriter.text;
+
+import java.util.Arrays;
+
+/**
+ * A set of carets and selections over an {@link Editable}, kept sorted by offset and never
+ * overlapping. Typing or deleting with every cursor at once is one {@link EditableTransaction}: a
+ * single pass over the storage, one undo unit and one notification, whatever the number of
+ * cursors. Afterwards the cursors are moved over the edits by their offset deltas, so no line
+ * lookups are needed to keep them in place.
+ *
+ * Each cursor is a range [start, end); a caret has start equal to end. One cursor is the primary
+ * one, which the editor scrolls to and which survives when cursors merge.
+ */
+public final class EditableCursors {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] ends = new int[INITIAL_CAPACITY];
+    private int count;
+    private int primary;
+
+    /**
+     * Returns the number of cursors.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the starting offset of a cursor.
+     *
+     * @param index The index of the cursor, in ascending order of offset.
+     */
+    public int getStart(int index) {
+        checkIndex(index);
+        return starts[index];
+    }
+
+    /**
+     * Returns the ending offset of a cursor, the caret position of a caret.
+     *
+     * @param index The index of the cursor, in ascending order of offset.
+     */
+    public int getEnd(int index) {
+        checkIndex(index);
+        return ends[index];
+    }
+
+    /**
+     * Returns the index of the primary cursor, or -1 if there are no cursors.
+     */
+    public int getPrimary() {
+        return (count > 0) ? primary : -1;
+    }
+
+    /**
+     * Removes every cursor.
+     */
+    public void clear() {
+        count = 0;
+        primary = 0;
+    }
+
+    /**
+     * Adds a caret, merged with any cursor it touches.
+     *
+     * @param offset The caret offset.
+     * @return The index of the cursor now holding the caret.
+     */
+    public int add(int offset) {
+        return add(offset, offset);
+    }
+
+    /**
+     * Adds a selection, merged with any cursor it overlaps. The added cursor becomes the primary
+     * one.
+     *
+     * @param start The starting offset of the selection (inclusive).
+     * @param end   The ending offset of the selection (exclusive).
+     * @return The index of the cursor now holding the selection.
+     * @throws IllegalArgumentException if the range is invalid.
+     */
+    public int add(int start, int end) {
+        if (start < 0 || start > end) {
+            throw new IllegalArgumentException("invalid range [" + start + ", " + end + ")");
+        }
+        // First cursor that does not end before the new one
+        int first = 0;
+        int high = count;
+        while (first < high) {
+            int mid = (first + high) >>> 1;
+            if (ends[mid] < start) {
+                first = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int last = first;
+        while (last < count && starts[last] <= end) {
+            start = Math.min(start, starts[last]);
+            end = Math.max(end, ends[last]);
+            last++;
+        }
+
+        int removed = last - first;
+        if (removed == 0) {
+            ensureCapacity(count + 1);
+            System.arraycopy(starts, first, starts, first + 1, count - first);
+            System.arraycopy(ends, first, ends, first + 1, count - first);
+            count++;
+        } else if (removed > 1) {
+            System.arraycopy(starts, last, starts, first + 1, count - last);
+            System.arraycopy(ends, last, ends, first + 1, count - last);
+            count -= removed - 1;
+        }
+        starts[first] = start;
+        ends[first] = end;
+        primary = first;
+        return first;
+    }
+
+    /**
+     * Replaces the range of every cursor with a text, as typing does, leaving a caret after each
+     * insertion.
+     *
+     * @param editable The text the cursors are on.
+     * @param text     The text to type.
+     * @return `true` if the text was changed.
+     */
+    public boolean insert(Editable editable, CharSequence text) {
+        if (count == 0) {
+            return false;
+        }
+        EditableTransaction transaction = editable.beginTransaction();
+        for (int i = 0; i < count; ++i) {
+            transaction.replace(starts[i], ends[i], text);
+        }
+        return apply(transaction);
+    }
+
+    /**
+     * Deletes the selection of every cursor, or the character before it for a caret, as
+     * backspace does.
+     *
+     * @param editable The text the cursors are on.
+     * @return `true` if the text was changed.
+     */
+    public boolean delete(Editable editable) {
+        EditableTransaction transaction = editable.beginTransaction();
+        for (int i = 0; i < count; ++i) {
+            if (starts[i] < ends[i]) {
+                transaction.delete(starts[i], ends[i]);
+            } else if (starts[i] > 0) {
+                transaction.delete(starts[i] - 1, starts[i]);
+            }
+        }
+        return transaction.size() > 0 && apply(transaction);
+    }
+
+    /**
+     * Moves every cursor over the edits of a committed transaction, merging cursors that meet.
+     * Call this for transactions committed by others while the cursors are shown.
+     *
+     * @param transaction A committed transaction.
+     */
+    public void update(EditableTransaction transaction) {
+        if (!transaction.isCommitted()) {
+            return;
+        }
+        for (int i = 0; i < count; ++i) {
+            starts[i] = transaction.mapOffset(starts[i]);
+            ends[i] = transaction.mapOffset(ends[i]);
+        }
+        merge();
+    }
+
+    private boolean apply(EditableTransaction transaction) {
+        if (!transaction.commit()) {
+            return false;
+        }
+        // Every cursor was the range of one edit, so it collapses to a caret after it
+        for (int i = 0; i < count; ++i) {
+            starts[i] = ends[i] = transaction.mapOffset(ends[i]);
+        }
+        merge();
+        return true;
+    }
+
+    /*
+     * Merges cursors that overlap or touch after an edit, as add does. Edits keep the order of the
+     * cursors, so a single pass is enough.
+     */
+    private void merge() {
+        if (count == 0) {
+            return;
+        }
+        int kept = 0;
+        int newPrimary = 0;
+        for (int i = 1; i < count; ++i) {
+            if (starts[i] <= ends[kept]) {
+                ends[kept] = Math.max(ends[kept], ends[i]);
+            } else {
+                kept++;
+                starts[kept] = starts[i];
+                ends[kept] = ends[i];
+            }
+            if (i == primary) {
+                newPrimary = kept;
+            }
+        }
+        count = kept + 1;
+        primary = newPrimary;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > starts.length) {
+            int newCapacity = Math.max(capacity, starts.length * 2);
+            starts = Arrays.copyOf(starts, newCapacity);
+            ends = Arrays.copyOf(ends, newCapacity);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("cursor " + index + " out of bounds");
+        }
+    }
+}
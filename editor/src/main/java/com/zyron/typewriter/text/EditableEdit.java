@@ -0,0 +1,50 @@
+package com.zyron.typewriter.text;
+
+/**
+ * An immutable replacement of the range [start, end) with a text, computed against a known
+ * version of an {@link Editable} and submitted with {@link Editable#applyEdits}. An insertion has
+ * an empty range and a deletion an empty text.
+ */
+public final class EditableEdit {
+
+    private final int start;
+    private final int end;
+    private final CharSequence text;
+
+    /**
+     * Constructs an edit replacing the specified range with the given text.
+     *
+     * @param start The starting offset of the range to replace (inclusive).
+     * @param end   The ending offset of the range to replace (exclusive).
+     * @param text  The replacement text, or null for none.
+     */
+    public EditableEdit(int start, int end, CharSequence text) {
+        if (start < 0 || start > end) {
+            throw new IllegalArgumentException("invalid range [" + start + ", " + end + ")");
+        }
+        this.start = start;
+        this.end = end;
+        this.text = (text != null) ? text : "";
+    }
+
+    /**
+     * Returns the starting offset of the replaced range (inclusive).
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the ending offset of the replaced range (exclusive).
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * Returns the replacement text.
+     */
+    public CharSequence getText() {
+        return text;
+    }
+}
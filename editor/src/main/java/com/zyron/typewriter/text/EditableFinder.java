@@ -0,0 +1,580 @@
+package com.zyron.typewriter.text;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Literal find over an {@link Editable}, case-sensitive or case-folded, kept up to date while the
+ * text is edited. Matches are found with Boyer-Moore-Horspool over chunks read in bulk with
+ * {@link Editable#getChars}, which copies straight out of the storage (both segments of a gap
+ * buffer), so the text is never turned into a String or a snapshot. A background job of an
+ * {@link EditableScheduler} searches the lines in the viewport first, then the rest of the text
+ * after them and finally the text before them, publishing results chunk by chunk.
+ *
+ * The matches form a sorted index of start offsets. Edits patch it in place from inside the edit:
+ * matches the edit touched are dropped, the others are shifted, and only the span around the
+ * edit is searched again, right away when it is small. When the query grows by typing, the
+ * matches of the previous query are the only candidates, so they are checked instead of
+ * searching the text again. Every occurrence is reported, including overlapping ones.
+ *
+ * With an {@link EditableTrigramIndex} set, a new query only searches the chunks of the text the
+ * index can not rule out; without one, or for queries shorter than a trigram, it scans it all.
+ *
+ * The query, the matches and the pending ranges are guarded by the finder's monitor and only
+ * changed while the Editable is locked too, taking the Editable first, so a reader holding either
+ * lock sees them agree with the text.
+ */
+public final class EditableFinder {
+
+    /**
+     * Receives progress of a search. Called on a worker thread, or inside an edit.
+     */
+    public interface Listener {
+
+        /**
+         * Called when matches were added, removed or moved.
+         *
+         * @param finder The finder whose matches changed.
+         */
+        void onMatchesChanged(EditableFinder finder);
+    }
+
+    /* Starts searched per step; the text is locked only while a step's chunk is copied out */
+    private static final int CHUNK_SIZE = 64 * 1024;
+    /* Pending starts searched from inside the edit rather than on a job */
+    private static final int INLINE_LIMIT = 4 * 1024;
+    /* Candidates of a grown query checked per step */
+    private static final int REFINE_BLOCK = 1024;
+    /* Quiet time after large edits before the spans around them are searched again */
+    private static final long RESCAN_DELAY = 50;
+    private static final int SHIFT_TABLE_SIZE = 256;
+
+    private final Editable editable;
+    private final EditableScheduler scheduler;
+    private final String jobName;
+    private Listener listener;
+    private EditableTrigramIndex index;
+
+    private String query = "";
+    private boolean ignoreCase;
+    private char[] pattern = new char[0];
+    private int[] shifts;
+    /* Incremented whenever the query changes, so steps for an older query drop their results */
+    private long generation;
+    /* The version of the text the matches and pending ranges refer to */
+    private long version;
+
+    private int[] matches = new int[16];
+    private int matchCount;
+    /* Matches before this index are exact, the rest are candidates left from a shorter query */
+    private int refined;
+    /* Match starts not searched yet */
+    private final EditableRangeSet pending = new EditableRangeSet();
+
+    private int viewportStart;
+    private int viewportEnd;
+
+    /* Used from inside edits */
+    private final Scan inlineScan = new Scan();
+
+    private final EditableChangeListener changeListener = new EditableChangeListener() {
+        @Override
+        public void onChanged(List<EditableChange> changes) {
+            onEdited(changes);
+        }
+    };
+
+    /**
+     * Constructs a finder. Its matches are kept up to date until {@link #close()}.
+     *
+     * @param editable  The text to search.
+     * @param scheduler The scheduler to search on.
+     */
+    public EditableFinder(Editable editable, EditableScheduler scheduler) {
+        this.editable = editable;
+        this.scheduler = scheduler;
+        this.jobName = "find@" + Integer.toHexString(System.identityHashCode(this));
+        editable.getChangeBus().subscribe(changeListener, EditableChangeBus.DIRECT, EditableChangeBus.COALESCE_NONE);
+    }
+
+    /**
+     * Sets the listener notified as matches change.
+     *
+     * @param listener The listener, or null for none.
+     */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the index that narrows the next queries down to the chunks that may match, or null to
+     * scan the whole text.
+     *
+     * @param index The index, built over the same text, or null.
+     */
+    public synchronized void setIndex(EditableTrigramIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Sets the range of the text on screen, which is searched first.
+     *
+     * @param start The offset of the first visible character.
+     * @param end   The offset after the last visible character.
+     */
+    public synchronized void setViewport(int start, int end) {
+        viewportStart = Math.max(0, start);
+        viewportEnd = Math.max(viewportStart, end);
+    }
+
+    /**
+     * Starts searching for a text, replacing the previous query. If the new query extends the
+     * previous one and that search was complete, only the previous matches are checked.
+     *
+     * @param query      The text to find, or an empty one to clear the matches.
+     * @param ignoreCase Whether to fold case when comparing.
+     */
+    public void find(String query, boolean ignoreCase) {
+        if (query == null) {
+            query = "";
+        }
+        // The Editable lock first, as edits take it before ours
+        synchronized (editable) {
+            synchronized (this) {
+                if (query.equals(this.query) && ignoreCase == this.ignoreCase) {
+                    return;
+                }
+                boolean grows = ignoreCase == this.ignoreCase && this.query.length() > 0
+                        && query.startsWith(this.query) && isComplete();
+                this.query = query;
+                this.ignoreCase = ignoreCase;
+                pattern = fold(query.toCharArray(), ignoreCase);
+                shifts = buildShifts(pattern);
+                generation++;
+                version = editable.getVersion();
+                refined = 0;
+                if (!grows) {
+                    matchCount = 0;
+                    pending.clear();
+                    if (pattern.length > 0 && (index == null || !index.narrow(pattern, pending))) {
+                        pending.add(0, editable.length());
+                    }
+                }
+            }
+        }
+        notifyListener();
+        if (query.length() > 0) {
+            scheduler.submit(new FindJob());
+        }
+    }
+
+    /**
+     * Returns the current query.
+     */
+    public synchronized String getQuery() {
+        return query;
+    }
+
+    /**
+     * Checks if the current query is compared with case folded.
+     */
+    public synchronized boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    /**
+     * Returns the length of every match.
+     */
+    public synchronized int getMatchLength() {
+        return pattern.length;
+    }
+
+    /**
+     * Returns the number of matches found so far. Until the search is
+     * {@link #isComplete() complete}, this may include candidates of a shorter query.
+     */
+    public synchronized int getMatchCount() {
+        return matchCount;
+    }
+
+    /**
+     * Returns the start offset of a match.
+     *
+     * @param index The index of the match, in ascending order of offset.
+     * @throws IndexOutOfBoundsException if the index is out of bounds.
+     */
+    public synchronized int getMatchStart(int index) {
+        if (index < 0 || index >= matchCount) {
+            throw new IndexOutOfBoundsException("match " + index + " out of bounds");
+        }
+        return matches[index];
+    }
+
+    /**
+     * Returns the index of the first match starting at or after the specified offset.
+     *
+     * @param offset The offset to search from.
+     * @return The index of the match, or {@link #getMatchCount()} if there is none.
+     */
+    public synchronized int findMatch(int offset) {
+        return lowerBound(matches, matchCount, offset);
+    }
+
+    /**
+     * Checks if the whole text was searched and every match is exact.
+     */
+    public synchronized boolean isComplete() {
+        return pending.isEmpty() && refined == matchCount;
+    }
+
+    /**
+     * Replaces the occurrences found as a single edit that undoes as one step. Overlapping
+     * occurrences are replaced from the left, skipping those that overlap one already replaced.
+     * Only the exact occurrences of the current text are replaced, so nothing is done until the
+     * search is {@link #isComplete() complete}.
+     *
+     * @param replacement The text replacing every occurrence, used as is.
+     * @return The number of occurrences replaced, or -1 if the search is not complete yet.
+     */
+    public int replaceAll(String replacement) {
+        synchronized (editable) {
+            int[] starts;
+            int[] ends;
+            int count = 0;
+            synchronized (this) {
+                if (pattern.length == 0) {
+                    return 0;
+                }
+                if (!isComplete() || version != editable.getVersion()) {
+                    return -1;
+                }
+                starts = new int[matchCount];
+                ends = new int[matchCount];
+                for (int i = 0; i < matchCount; ++i) {
+                    if (count == 0 || matches[i] >= ends[count - 1]) {
+                        starts[count] = matches[i];
+                        ends[count++] = matches[i] + pattern.length;
+                    }
+                }
+            }
+            // Our lock is released first, the edit takes it again to patch the matches
+            return editable.replaceAll(starts, ends, count, null, replacement);
+        }
+    }
+
+    /**
+     * Stops following the edits of the text and clears the matches.
+     */
+    public void close() {
+        editable.getChangeBus().unsubscribe(changeListener);
+        scheduler.cancel(jobName);
+        synchronized (this) {
+            query = "";
+            pattern = new char[0];
+            generation++;
+            matchCount = 0;
+            refined = 0;
+            pending.clear();
+        }
+    }
+
+    /*
+     * Patches the matches and pending ranges from inside the edit, then searches the span around
+     * the edit right away if it is small, or schedules a job for it.
+     */
+    private void onEdited(List<EditableChange> changes) {
+        boolean submit;
+        synchronized (editable) {
+            synchronized (this) {
+                int length = pattern.length;
+                for (EditableChange change : changes) {
+                    version = change.getVersion();
+                    if (length > 0) {
+                        patch(change.getOffset(), change.getRemoved(), change.getInserted(), length);
+                    }
+                }
+                if (length == 0) {
+                    return;
+                }
+                submit = !pending.isEmpty();
+                if (submit && refined == matchCount && version == editable.getVersion()
+                        && pending.length() <= INLINE_LIMIT) {
+                    for (int i = 0; i < pending.size(); ++i) {
+                        int count = inlineScan.search(editable, pending.getStart(i), pending.getEnd(i), pattern, shifts, ignoreCase);
+                        insertMatches(inlineScan.found, count);
+                    }
+                    pending.clear();
+                    submit = false;
+                }
+            }
+        }
+        notifyListener();
+        if (submit) {
+            scheduler.submit(new FindJob(), RESCAN_DELAY);
+        }
+    }
+
+    private void patch(int offset, int removed, int inserted, int length) {
+        int removedEnd = offset + removed;
+        int delta = inserted - removed;
+
+        // Drop the matches overlapping the change, shift the ones after it
+        int first = lowerBound(matches, matchCount, offset - length + 1);
+        int last = lowerBound(matches, matchCount, removedEnd);
+        System.arraycopy(matches, last, matches, first, matchCount - last);
+        matchCount -= last - first;
+        if (refined >= last) {
+            refined -= last - first;
+        } else if (refined > first) {
+            refined = first;
+        }
+        for (int i = first; i < matchCount; ++i) {
+            matches[i] += delta;
+        }
+
+        pending.map(offset, removed, inserted);
+        pending.add(Math.max(0, offset - length + 1), offset + inserted);
+    }
+
+    /*
+     * Checks a block of candidates against the grown query. Called with the Editable locked.
+     */
+    private void refine(char[] window) {
+        int end = Math.min(matchCount, refined + REFINE_BLOCK);
+        int kept = refined;
+        int textLength = editable.length();
+        for (int i = refined; i < end; ++i) {
+            int candidate = matches[i];
+            if (candidate + pattern.length > textLength) {
+                continue;
+            }
+            editable.getChars(candidate, candidate + pattern.length, window, 0);
+            if (matches(window, 0, pattern, ignoreCase)) {
+                matches[kept++] = candidate;
+            }
+        }
+        System.arraycopy(matches, end, matches, kept, matchCount - end);
+        matchCount -= end - kept;
+        refined = kept;
+    }
+
+    /*
+     * Picks the next range of starts to search: from the viewport on to the end of the text, then
+     * from the start of the text. Returns false if nothing is pending.
+     */
+    private boolean nextRange(int[] range) {
+        if (!pending.next(viewportStart, range)) {
+            return false;
+        }
+        range[1] = Math.min(range[1], range[0] + CHUNK_SIZE);
+        if (range[0] < viewportEnd) {
+            // Publish the visible part on its own
+            range[1] = Math.min(range[1], viewportEnd);
+        }
+        return true;
+    }
+
+    private void insertMatches(int[] found, int count) {
+        if (count == 0) {
+            return;
+        }
+        if (matchCount + count > matches.length) {
+            matches = Arrays.copyOf(matches, Math.max(matchCount + count, matches.length * 2));
+        }
+        int index = lowerBound(matches, matchCount, found[0]);
+        System.arraycopy(matches, index, matches, index + count, matchCount - index);
+        System.arraycopy(found, 0, matches, index, count);
+        matchCount += count;
+        refined += count;
+    }
+
+    private void notifyListener() {
+        Listener listener;
+        synchronized (this) {
+            listener = this.listener;
+        }
+        if (listener != null) {
+            listener.onMatchesChanged(this);
+        }
+    }
+
+    /*
+     * Checks the candidates of a grown query, then searches the pending ranges chunk by chunk.
+     * The text is locked only to pick a step and copy its chunk out; the search itself runs
+     * unlocked and its result is dropped if the text changed meanwhile, in which case the edit
+     * has already patched the pending ranges and the next step picks them up.
+     */
+    private final class FindJob extends EditableJob {
+
+        private final Scan scan = new Scan();
+
+        FindJob() {
+            super(jobName, PRIORITY_INTERACTIVE, false);
+        }
+
+        @Override
+        protected boolean isSnapshotNeeded() {
+            return false;
+        }
+
+        @Override
+        protected void run(EditableSnapshot snapshot) {
+            int[] range = new int[2];
+            while (!isCancelled()) {
+                char[] pattern;
+                int[] shifts;
+                boolean ignoreCase;
+                long generation;
+                long version;
+                synchronized (editable) {
+                    synchronized (EditableFinder.this) {
+                        // Behind a change still being delivered, whose delivery submits again
+                        if (EditableFinder.this.version != editable.getVersion()
+                                || EditableFinder.this.pattern.length == 0) {
+                            return;
+                        }
+                        if (refined < matchCount) {
+                            refine(scan.window(EditableFinder.this.pattern.length));
+                            range[0] = -1;
+                        } else if (!nextRange(range)) {
+                            return;
+                        }
+                        pattern = EditableFinder.this.pattern;
+                        shifts = EditableFinder.this.shifts;
+                        ignoreCase = EditableFinder.this.ignoreCase;
+                        generation = EditableFinder.this.generation;
+                        version = EditableFinder.this.version;
+                    }
+                    if (range[0] >= 0) {
+                        scan.read(editable, range[0], range[1], pattern.length);
+                    }
+                }
+                if (range[0] < 0) {
+                    notifyListener();
+                    continue;
+                }
+
+                int count = scan.search(range[0], pattern, shifts, ignoreCase);
+                synchronized (EditableFinder.this) {
+                    if (version != EditableFinder.this.version || generation != EditableFinder.this.generation
+                            || !pending.contains(range[0], range[1])) {
+                        continue;
+                    }
+                    insertMatches(scan.found, count);
+                    pending.remove(range[0], range[1]);
+                }
+                notifyListener();
+            }
+        }
+    }
+
+    /*
+     * Buffers for reading a chunk of the text and collecting the matches in it. Also used by
+     * EditableProjectSearch, which decodes files straight into the buffer.
+     */
+    static final class Scan {
+
+        char[] buffer = new char[0];
+        int size;
+        int[] found = new int[64];
+
+        /*
+         * Copies out the text the starts in [start, end) need. Called with the Editable locked.
+         */
+        void read(Editable editable, int start, int end, int length) {
+            size = Math.max(0, Math.min(editable.length(), end + length - 1) - start);
+            if (buffer.length < size) {
+                buffer = new char[Math.max(size, buffer.length * 2)];
+            }
+            editable.getChars(start, start + size, buffer, 0);
+        }
+
+        int search(Editable editable, int start, int end, char[] pattern, int[] shifts, boolean ignoreCase) {
+            read(editable, start, end, pattern.length);
+            return search(start, pattern, shifts, ignoreCase);
+        }
+
+        /*
+         * Finds every match in the buffer with Boyer-Moore-Horspool, as offsets from `base`.
+         */
+        int search(int base, char[] pattern, int[] shifts, boolean ignoreCase) {
+            int length = pattern.length;
+            int last = length - 1;
+            int count = 0;
+            for (int i = 0; i + length <= size; ) {
+                char c = buffer[i + last];
+                if (ignoreCase) {
+                    c = fold(c);
+                }
+                if (c == pattern[last] && matches(buffer, i, pattern, ignoreCase)) {
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, count * 2);
+                    }
+                    found[count++] = base + i;
+                }
+                i += shifts[c & (SHIFT_TABLE_SIZE - 1)];
+            }
+            return count;
+        }
+
+        char[] window(int length) {
+            if (buffer.length < length) {
+                buffer = new char[length];
+            }
+            return buffer;
+        }
+    }
+
+    private static boolean matches(char[] text, int offset, char[] pattern, boolean ignoreCase) {
+        for (int j = pattern.length - 1; j >= 0; --j) {
+            char c = text[offset + j];
+            if ((ignoreCase ? fold(c) : c) != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Horspool shifts by the low bits of the character under the end of the window. Characters
+     * sharing a bucket share the smallest shift, which keeps the table small and the search exact.
+     */
+    static int[] buildShifts(char[] pattern) {
+        int[] shifts = new int[SHIFT_TABLE_SIZE];
+        Arrays.fill(shifts, Math.max(1, pattern.length));
+        for (int i = 0; i < pattern.length - 1; ++i) {
+            shifts[pattern[i] & (SHIFT_TABLE_SIZE - 1)] = pattern.length - 1 - i;
+        }
+        return shifts;
+    }
+
+    static char[] fold(char[] chars, boolean ignoreCase) {
+        if (ignoreCase) {
+            for (int i = 0; i < chars.length; ++i) {
+                chars[i] = fold(chars[i]);
+            }
+        }
+        return chars;
+    }
+
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /*
+     * Index of the first value at or above `key` in the first `count` values.
+     */
+    private static int lowerBound(int[] values, int count, int key) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,404 @@
+package com.zyron.typewriter.text;
+
+/**
+ * An {@link EditableStorage} that implements the GapBuffer data structure. Characters are kept in
+ * a single array with a gap at the last edit position, so consecutive edits at the same place only
+ * touch the gap, while edits elsewhere first move the gap to the edit position.
+ *
+ * The gap is moved and resized with block copies. Its size follows the document size: small
+ * documents double their buffer when it fills up, while large ones grow by a bounded amount, and
+ * a buffer whose gap ends up much larger than needed, for example after deleting most of a large
+ * paste, is compacted so the memory is given back. The number of gap moves and resizes and the
+ * bytes they copied are counted so the cost can be measured.
+ *
+ * Like compact strings in the JDK, text whose characters all fit in Latin-1 is held in a byte array,
+ * halving the memory of typical ASCII source files. The buffer inflates to a char array the first
+ * time a wider character is inserted and stays that way. {@link #getChars} widens whole blocks, so
+ * bulk readers do not pay a per-character cost for the compact form.
+ */
+public final class EditableGapBuffer implements EditableStorage {
+
+    /** The smallest gap a resized buffer gets. */
+    public static final int MINIMUM_GAP_SIZE = 64;
+    /** The largest gap a resized buffer gets, in characters. */
+    public static final int MAXIMUM_GAP_SIZE = 1 << 20;
+    /** Gaps smaller than this are never compacted. */
+    private static final int MINIMUM_COMPACT_SIZE = 4096;
+
+    /* Exactly one of the two arrays is in use, compactContents while the text is Latin-1 */
+    private char[] editableContents;
+    private byte[] compactContents;
+    private int editableStartIndex;
+    private int editableEndIndex;
+
+    /* Statistics */
+    private long gapMoveCount;
+    private long gapMoveBytes;
+    private long resizeCount;
+    private long resizeBytes;
+
+    /**
+     * Constructs an empty gap buffer in compact form with an initial buffer size of 16 characters.
+     */
+    public EditableGapBuffer() {
+        compactContents = new byte[16];
+        editableStartIndex = 0;
+        editableEndIndex = compactContents.length;
+    }
+
+    /**
+     * Constructs a gap buffer holding a copy of the specified CharSequence. The compact form is
+     * used if every character fits in Latin-1.
+     *
+     * @param text The initial content.
+     */
+    public EditableGapBuffer(CharSequence text) {
+        int length = (text != null) ? text.length() : 0;
+        int capacity = length + getPreferredGapSize(length);
+        char[] chars = new char[capacity];
+        if (text instanceof String) {
+            ((String) text).getChars(0, length, chars, 0);
+        } else {
+            for (int i = 0; i < length; ++i) {
+                chars[i] = text.charAt(i);
+            }
+        }
+
+        if (isLatin1(chars, 0, length)) {
+            compactContents = new byte[capacity];
+            compress(chars, 0, compactContents, 0, length);
+        } else {
+            editableContents = chars;
+        }
+        editableStartIndex = length;
+        editableEndIndex = capacity;
+    }
+
+    /**
+     * Constructs a gap buffer that takes ownership of the specified character array as its initial
+     * content. The array must not be modified by the caller afterwards.
+     *
+     * @param contents The initial content.
+     */
+    public EditableGapBuffer(char[] contents) {
+        editableContents = (contents != null) ? contents : new char[0];
+        editableStartIndex = editableContents.length;
+        editableEndIndex = editableContents.length;
+    }
+
+    @Override
+    public int length() {
+        return getCapacity() - editableSize();
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length()) {
+            throw new IndexOutOfBoundsException("index " + index + " out of bounds");
+        }
+        if (compactContents != null) {
+            return (char) (compactContents[getRealIndex(index)] & 0xFF);
+        }
+        return editableContents[getRealIndex(index)];
+    }
+
+    @Override
+    public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+        if (srcBegin < 0 || srcEnd > length() || srcBegin > srcEnd) {
+            throw new IndexOutOfBoundsException("range [" + srcBegin + ", " + srcEnd + ") out of bounds");
+        }
+        if (srcBegin < editableStartIndex) {
+            int count = Math.min(srcEnd, editableStartIndex) - srcBegin;
+            copyOut(srcBegin, dst, dstBegin, count);
+            srcBegin += count;
+            dstBegin += count;
+        }
+        if (srcBegin < srcEnd) {
+            copyOut(srcBegin + editableSize(), dst, dstBegin, srcEnd - srcBegin);
+        }
+    }
+
+    /*
+     * Copies count characters starting at a real index of the buffer into dst.
+     */
+    private void copyOut(int realIndex, char[] dst, int dstBegin, int count) {
+        if (compactContents != null) {
+            inflate(compactContents, realIndex, dst, dstBegin, count);
+        } else {
+            System.arraycopy(editableContents, realIndex, dst, dstBegin, count);
+        }
+    }
+
+    @Override
+    public void insert(int offset, char[] chars, int start, int count) {
+        if (offset < 0 || offset > length()) {
+            throw new IndexOutOfBoundsException("offset " + offset + " out of bounds");
+        }
+        if (compactContents != null && !isLatin1(chars, start, count)) {
+            inflate();
+        }
+        moveGap(offset);
+
+        if (count >= editableSize()) {
+            expandBuffer(count - editableSize() + 1);
+        }
+
+        if (compactContents != null) {
+            compress(chars, start, compactContents, editableStartIndex, count);
+        } else {
+            System.arraycopy(chars, start, editableContents, editableStartIndex, count);
+        }
+        editableStartIndex += count;
+    }
+
+    @Override
+    public void delete(int start, int end) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + ") out of bounds");
+        }
+        moveGap(end);
+        editableStartIndex -= end - start;
+
+        int gapSize = editableSize();
+        if (gapSize > MINIMUM_COMPACT_SIZE && gapSize > getPreferredGapSize(length()) * 2) {
+            compact();
+        }
+    }
+
+    /**
+     * Shrinks the buffer so that the gap is back at its preferred size for the current document
+     * size. This happens automatically after deletions that leave a large gap behind.
+     */
+    public void compact() {
+        int length = length();
+        int gapSize = getPreferredGapSize(length);
+        if (editableSize() > gapSize) {
+            resize(length + gapSize);
+        }
+    }
+
+    /**
+     * Returns whether the content is currently held in the compact Latin-1 form.
+     *
+     * @return `true` if every character is stored in a single byte.
+     */
+    public boolean isCompact() {
+        return compactContents != null;
+    }
+
+    /**
+     * Returns the number of times the gap was moved.
+     */
+    public long getGapMoveCount() {
+        return gapMoveCount;
+    }
+
+    /**
+     * Returns the number of bytes copied by gap moves.
+     */
+    public long getGapMoveBytes() {
+        return gapMoveBytes;
+    }
+
+    /**
+     * Returns the number of times the buffer was grown or compacted.
+     */
+    public long getResizeCount() {
+        return resizeCount;
+    }
+
+    /**
+     * Returns the number of bytes copied by growing or compacting the buffer.
+     */
+    public long getResizeBytes() {
+        return resizeBytes;
+    }
+
+    /**
+     * Returns the number of characters the buffer can hold before it has to grow.
+     */
+    public int getCapacity() {
+        return compactContents != null ? compactContents.length : editableContents.length;
+    }
+
+    /**
+     * Resets the gap move and resize statistics.
+     */
+    public void resetStatistics() {
+        gapMoveCount = 0;
+        gapMoveBytes = 0;
+        resizeCount = 0;
+        resizeBytes = 0;
+    }
+
+    /**
+     * Moves the gap so that it starts at the specified logical offset.
+     *
+     * @param offset The new logical position of the gap.
+     */
+    public void moveGap(int offset) {
+        if (offset < editableStartIndex) {
+            shiftEditableLeft(offset);
+        } else if (offset > editableStartIndex) {
+            shiftEditableRight(offset + editableSize());
+        }
+    }
+
+    /**
+     * Adjusts the gap in the `editableContents` array so that `editableStartIndex` is at
+     * `newEditableStart`. The characters between the two positions move to the end of the gap in
+     * one block copy.
+     *
+     * @param newEditableStart The new position for `editableStartIndex`.
+     */
+    private void shiftEditableLeft(int newEditableStart) {
+        int count = editableStartIndex - newEditableStart;
+        editableStartIndex -= count;
+        editableEndIndex -= count;
+        Object contents = getContents();
+        System.arraycopy(contents, editableStartIndex, contents, editableEndIndex, count);
+        recordGapMove(count);
+    }
+
+    /**
+     * Adjusts the gap in the `editableContents` array so that `editableEndIndex` is at
+     * `newEditableEnd`. The characters between the two positions move to the start of the gap in
+     * one block copy.
+     *
+     * @param newEditableEnd The new position for `editableEndIndex`.
+     */
+    private void shiftEditableRight(int newEditableEnd) {
+        int count = newEditableEnd - editableEndIndex;
+        Object contents = getContents();
+        System.arraycopy(contents, editableEndIndex, contents, editableStartIndex, count);
+        editableStartIndex += count;
+        editableEndIndex += count;
+        recordGapMove(count);
+    }
+
+    private void recordGapMove(int count) {
+        ++gapMoveCount;
+        gapMoveBytes += (long) count * getCharSize();
+    }
+
+    /*
+     * Returns the array currently holding the content, for copies that work on either form.
+     */
+    private Object getContents() {
+        return compactContents != null ? compactContents : editableContents;
+    }
+
+    /*
+     * Returns the number of bytes a character takes in the current form.
+     */
+    private int getCharSize() {
+        return compactContents != null ? Byte.BYTES : Character.BYTES;
+    }
+
+    /**
+     * Expands the buffer (`editableContents` array) by at least `minIncrement` characters to
+     * accommodate new insertions, leaving a gap of the preferred size for the new document size.
+     *
+     * @param minIncrement The minimum number of characters to increase the buffer by.
+     */
+    private void expandBuffer(int minIncrement) {
+        int required = getCapacity() + minIncrement;
+        long capacity = (long) required + getPreferredGapSize(required);
+        if (capacity > Integer.MAX_VALUE - 8) {
+            capacity = Math.max(required, Integer.MAX_VALUE - 8);
+        }
+        resize((int) capacity);
+    }
+
+    /**
+     * Moves the content into a new array of the given capacity, keeping the gap where it is.
+     *
+     * @param capacity The new array length, at least the current length.
+     */
+    private void resize(int capacity) {
+        Object contents = getContents();
+        Object temp = compactContents != null ? new byte[capacity] : new char[capacity];
+        int tailLength = getCapacity() - editableEndIndex;
+        System.arraycopy(contents, 0, temp, 0, editableStartIndex);
+        System.arraycopy(contents, editableEndIndex, temp, capacity - tailLength, tailLength);
+
+        ++resizeCount;
+        resizeBytes += (long) (editableStartIndex + tailLength) * getCharSize();
+        editableEndIndex = capacity - tailLength;
+        if (compactContents != null) {
+            compactContents = (byte[]) temp;
+        } else {
+            editableContents = (char[]) temp;
+        }
+    }
+
+    /**
+     * Switches from the compact form to a char array of the same capacity. Only the content on
+     * both sides of the gap is widened.
+     */
+    private void inflate() {
+        int capacity = compactContents.length;
+        char[] chars = new char[capacity];
+        inflate(compactContents, 0, chars, 0, editableStartIndex);
+        inflate(compactContents, editableEndIndex, chars, editableEndIndex, capacity - editableEndIndex);
+
+        ++resizeCount;
+        resizeBytes += (long) (capacity - editableSize()) * Character.BYTES;
+        editableContents = chars;
+        compactContents = null;
+    }
+
+    private static boolean isLatin1(char[] chars, int start, int count) {
+        for (int i = start, end = start + count; i < end; ++i) {
+            if (chars[i] > 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void inflate(byte[] src, int srcBegin, char[] dst, int dstBegin, int count) {
+        for (int i = 0; i < count; ++i) {
+            dst[dstBegin + i] = (char) (src[srcBegin + i] & 0xFF);
+        }
+    }
+
+    private static void compress(char[] src, int srcBegin, byte[] dst, int dstBegin, int count) {
+        for (int i = 0; i < count; ++i) {
+            dst[dstBegin + i] = (byte) src[srcBegin + i];
+        }
+    }
+
+    /**
+     * Returns the gap a resized buffer should get for a document of the given size. Small
+     * documents get a gap as large as themselves, so the buffer doubles; larger ones get half
+     * their size, bounded by {@link #MAXIMUM_GAP_SIZE}.
+     *
+     * @param length The document size in characters.
+     * @return The preferred gap size.
+     */
+    private static int getPreferredGapSize(int length) {
+        int gapSize = length < 64 * 1024 ? length : length >> 1;
+        return Math.max(MINIMUM_GAP_SIZE, Math.min(gapSize, MAXIMUM_GAP_SIZE));
+    }
+
+    /**
+     * Returns the size of the gap in the `editableContents` array.
+     *
+     * @return The number of characters in the gap.
+     */
+    private int editableSize() {
+        return editableEndIndex - editableStartIndex;
+    }
+
+    /**
+     * Converts a logical character offset to a real index in the `editableContents` array.
+     *
+     * @param index The logical character offset.
+     * @return The corresponding real index in the array.
+     */
+    private int getRealIndex(int index) {
+        if (index < editableStartIndex) return index;
+        else return index + editableSize();
+    }
+}
@@ -0,0 +1,156 @@
+package com.zyron.typewriter.text;
+
+/**
+ * Background work on an {@link Editable}, such as highlighting, indexing, search or autosave, run
+ * by an {@link EditableScheduler} against an {@link EditableSnapshot} of the version it was
+ * submitted for. Jobs with a lower priority value run first. A job whose result is only useful for
+ * that version asks to be cancelled as soon as the text changes; long jobs should check
+ * {@link #isCancelled()} regularly and return early.
+ */
+public abstract class EditableJob {
+
+    /** For work on the lines currently on screen. */
+    public static final int PRIORITY_VIEWPORT = 0;
+    /** For work the user is waiting for, such as search results. */
+    public static final int PRIORITY_INTERACTIVE = 10;
+    /** For work on the rest of the document. */
+    public static final int PRIORITY_BACKGROUND = 20;
+    /** For work that can wait, such as autosave. */
+    public static final int PRIORITY_IDLE = 30;
+
+    /** State of a job. */
+    public enum State {
+        PENDING, QUEUED, RUNNING, DONE, CANCELLED
+    }
+
+    private final String name;
+    private final int priority;
+    private final boolean cancelWhenStale;
+
+    private volatile State state = State.PENDING;
+    private volatile long version = -1;
+    private volatile long queuedTime;
+    private volatile long startTime;
+    private volatile long finishTime;
+
+    /**
+     * Constructs a job.
+     *
+     * @param name            The name of the job. Submitting a job with a name that is pending
+     *                        replaces the pending one when debounced.
+     * @param priority        The priority, lower first, such as {@link #PRIORITY_VIEWPORT}.
+     * @param cancelWhenStale Whether the job is cancelled once the text changes from the version
+     *                        it was submitted for.
+     */
+    protected EditableJob(String name, int priority, boolean cancelWhenStale) {
+        this.name = name;
+        this.priority = priority;
+        this.cancelWhenStale = cancelWhenStale;
+    }
+
+    /**
+     * Does the work, on a worker thread.
+     *
+     * @param snapshot The text at the version the job targets, or null if the job does not
+     *                 {@link #isSnapshotNeeded() need} one.
+     */
+    protected abstract void run(EditableSnapshot snapshot);
+
+    /**
+     * Checks if the job reads a snapshot. A job that reads the Editable itself in short locked
+     * steps returns `false`, which saves the copy of the whole text a snapshot costs with storages
+     * other than the rope.
+     */
+    protected boolean isSnapshotNeeded() {
+        return true;
+    }
+
+    public final String getName() {
+        return name;
+    }
+
+    public final int getPriority() {
+        return priority;
+    }
+
+    public final boolean isCancelWhenStale() {
+        return cancelWhenStale;
+    }
+
+    public final State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the version of the text the job targets, or -1 before it is queued.
+     */
+    public final long getVersion() {
+        return version;
+    }
+
+    /**
+     * Checks if the job was cancelled, explicitly or because its version became stale.
+     */
+    public final boolean isCancelled() {
+        return state == State.CANCELLED;
+    }
+
+    /**
+     * Cancels the job. A queued job does not run; a running one sees {@link #isCancelled()}.
+     */
+    public final synchronized void cancel() {
+        if (state != State.DONE) {
+            state = State.CANCELLED;
+            if (finishTime == 0) {
+                finishTime = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Returns the nanoseconds the job waited in the queue, or until now if it is still waiting.
+     */
+    public final long getWaitNanos() {
+        if (queuedTime == 0) {
+            return 0;
+        }
+        long end = (startTime != 0) ? startTime : (finishTime != 0) ? finishTime : System.nanoTime();
+        return end - queuedTime;
+    }
+
+    /**
+     * Returns the nanoseconds the job has been running, or ran in total once it finished.
+     */
+    public final long getRunNanos() {
+        if (startTime == 0) {
+            return 0;
+        }
+        return ((finishTime != 0) ? finishTime : System.nanoTime()) - startTime;
+    }
+
+    synchronized void onQueued(long version) {
+        this.version = version;
+        queuedTime = System.nanoTime();
+        if (state == State.PENDING) {
+            state = State.QUEUED;
+        }
+    }
+
+    synchronized boolean onStarted() {
+        if (state != State.QUEUED) {
+            return false;
+        }
+        startTime = System.nanoTime();
+        state = State.RUNNING;
+        return true;
+    }
+
+    synchronized void onFinished() {
+        if (finishTime == 0) {
+            finishTime = System.nanoTime();
+        }
+        if (state == State.RUNNING) {
+            state = State.DONE;
+        }
+    }
+}
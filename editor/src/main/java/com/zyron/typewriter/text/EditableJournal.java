@@ -0,0 +1,237 @@
+package com.zyron.typewriter.text;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-mapped file holding the undo history of one document across process restarts. Every
+ * record is one undo action and links to the record before it, so history can be read back one
+ * group at a time from the newest record down. Writes go straight into the mapping, so they reach
+ * the file even if the process is killed.
+ *
+ * The header holds a checkpoint: the content hash of the document when it was last saved and the
+ * newest undo record at that moment. On reopen, history is only trusted if the document still
+ * hashes to that value; records written after the checkpoint belong to edits that were never
+ * saved and are dropped.
+ */
+final class EditableJournal implements Closeable {
+
+    private static final int MAGIC = 0x54574A31;
+    private static final int FORMAT_VERSION = 1;
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    /* Header layout */
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_ID = 8;
+    private static final int HEADER_HASH = 16;
+    private static final int HEADER_VALID = 24;
+    private static final int HEADER_COUNT = 28;
+    private static final int HEADER_RECORD = 32;
+    private static final int HEADER_GROUP = 36;
+    static final int HEADER_SIZE = 40;
+
+    /* Record layout, followed by the text as UTF-16 code units */
+    private static final int RECORD_PREVIOUS = 0;
+    private static final int RECORD_GROUP = 4;
+    private static final int RECORD_TYPE = 8;
+    private static final int RECORD_START = 12;
+    private static final int RECORD_END = 16;
+    private static final int RECORD_LENGTH = 20;
+    private static final int RECORD_SIZE = 24;
+
+    /* Record types */
+    static final int TYPE_INSERT = 1;
+    static final int TYPE_DELETE = 2;
+    static final int TYPE_REPLACE = 3;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long documentId;
+    private MappedByteBuffer buffer;
+    private int writePosition;
+
+    /**
+     * Opens or creates the journal file of a document.
+     *
+     * @param path       The journal file.
+     * @param documentId A hash identifying the document.
+     * @throws IOException if the file can not be opened or mapped.
+     */
+    EditableJournal(File path, long documentId) throws IOException {
+        this.file = new RandomAccessFile(path, "rw");
+        this.channel = file.getChannel();
+        this.documentId = documentId;
+        map((int) Math.max(INITIAL_CAPACITY, Math.min(channel.size(), Integer.MAX_VALUE)));
+        writePosition = HEADER_SIZE;
+    }
+
+    /**
+     * Checks if the journal holds a checkpoint for this document taken when its content hashed
+     * to the specified value.
+     *
+     * @param contentHash The hash of the current document content.
+     * @return `true` if the history up to the checkpoint can be restored.
+     */
+    boolean isValid(long contentHash) {
+        return buffer.getInt(HEADER_MAGIC) == MAGIC
+                && buffer.getInt(HEADER_VERSION) == FORMAT_VERSION
+                && buffer.getLong(HEADER_ID) == documentId
+                && buffer.getInt(HEADER_VALID) != 0
+                && buffer.getLong(HEADER_HASH) == contentHash;
+    }
+
+    /**
+     * Returns the number of undo actions at the checkpoint.
+     */
+    int getCheckpointCount() {
+        return buffer.getInt(HEADER_COUNT);
+    }
+
+    /**
+     * Returns the position of the newest undo record at the checkpoint, or -1 if there was none.
+     */
+    int getCheckpointRecord() {
+        return buffer.getInt(HEADER_RECORD);
+    }
+
+    /**
+     * Returns the first group id that was still unused at the checkpoint.
+     */
+    int getCheckpointGroup() {
+        return buffer.getInt(HEADER_GROUP);
+    }
+
+    /**
+     * Drops everything after the checkpoint, so new records follow the newest restored one.
+     */
+    void restoreCheckpoint() {
+        int record = getCheckpointRecord();
+        writePosition = (record >= 0) ? getRecordEnd(record) : HEADER_SIZE;
+    }
+
+    /**
+     * Drops all records and the checkpoint.
+     */
+    void reset() {
+        buffer.putInt(HEADER_MAGIC, MAGIC);
+        buffer.putInt(HEADER_VERSION, FORMAT_VERSION);
+        buffer.putLong(HEADER_ID, documentId);
+        buffer.putInt(HEADER_VALID, 0);
+        writePosition = HEADER_SIZE;
+    }
+
+    /**
+     * Records a checkpoint: the document, which now hashes to `contentHash`, has `count` undo
+     * actions, the newest of which is at `record`.
+     */
+    void checkpoint(long contentHash, int count, int record, int nextGroup) {
+        buffer.putInt(HEADER_VALID, 0);
+        buffer.putLong(HEADER_HASH, contentHash);
+        buffer.putInt(HEADER_COUNT, count);
+        buffer.putInt(HEADER_RECORD, record);
+        buffer.putInt(HEADER_GROUP, nextGroup);
+        buffer.putInt(HEADER_VALID, 1);
+    }
+
+    /**
+     * Appends an undo action.
+     *
+     * @param previous The position of the record of the action before it, or -1.
+     * @param type     The kind of action, such as {@link #TYPE_INSERT}.
+     * @return The position of the new record.
+     * @throws IOException if the mapping can not be grown.
+     */
+    int append(int previous, int group, int type, int start, int end, String data) throws IOException {
+        int length = (data != null) ? data.length() : 0;
+        long required = (long) writePosition + RECORD_SIZE + (long) length * 2;
+        if (required > Integer.MAX_VALUE) {
+            throw new IOException("journal is full");
+        }
+        if (required > buffer.capacity()) {
+            map((int) Math.min(Integer.MAX_VALUE, Math.max(required, (long) buffer.capacity() * 2)));
+        }
+
+        int position = writePosition;
+        buffer.putInt(position + RECORD_PREVIOUS, previous);
+        buffer.putInt(position + RECORD_GROUP, group);
+        buffer.putInt(position + RECORD_TYPE, type);
+        buffer.putInt(position + RECORD_START, start);
+        buffer.putInt(position + RECORD_END, end);
+        buffer.putInt(position + RECORD_LENGTH, length);
+        for (int i = 0; i < length; ++i) {
+            buffer.putChar(position + RECORD_SIZE + i * 2, data.charAt(i));
+        }
+        writePosition = position + RECORD_SIZE + length * 2;
+        return position;
+    }
+
+    /**
+     * Discards the records written after the specified one. The checkpoint is dropped if one of
+     * its records is discarded.
+     *
+     * @param record The position of the last record to keep, or -1 to discard all.
+     */
+    void truncateAfter(int record) {
+        int position = (record >= 0) ? getRecordEnd(record) : HEADER_SIZE;
+        int checkpoint = getCheckpointRecord();
+        if (checkpoint >= 0 && position < getRecordEnd(checkpoint)) {
+            buffer.putInt(HEADER_VALID, 0);
+        }
+        writePosition = position;
+    }
+
+    int getPrevious(int position) {
+        return buffer.getInt(position + RECORD_PREVIOUS);
+    }
+
+    int getGroup(int position) {
+        return buffer.getInt(position + RECORD_GROUP);
+    }
+
+    int getType(int position) {
+        return buffer.getInt(position + RECORD_TYPE);
+    }
+
+    int getStart(int position) {
+        return buffer.getInt(position + RECORD_START);
+    }
+
+    int getEnd(int position) {
+        return buffer.getInt(position + RECORD_END);
+    }
+
+    /**
+     * Returns the text of a record, or null if it has none.
+     */
+    String getData(int position) {
+        int length = buffer.getInt(position + RECORD_LENGTH);
+        if (length == 0 && getType(position) == TYPE_INSERT) {
+            return null;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; ++i) {
+            chars[i] = buffer.getChar(position + RECORD_SIZE + i * 2);
+        }
+        return new String(chars);
+    }
+
+    private int getRecordEnd(int position) {
+        return position + RECORD_SIZE + buffer.getInt(position + RECORD_LENGTH) * 2;
+    }
+
+    private void map(int capacity) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+        file.close();
+    }
+}
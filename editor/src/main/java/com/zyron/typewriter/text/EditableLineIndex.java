@@ -0,0 +1,358 @@
+package com.zyron.typewriter.text;
+
+import java.util.Arrays;
+
+/**
+ * Line start index for an {@link Editable}. Every line is one node of an implicit treap ordered by
+ * line number and weighted by the number of characters on the line, including its trailing
+ * newline. Subtree sums answer line to offset and offset to line lookups in O(log n), and edits
+ * only split or merge the lines they touch. Nodes are kept in parallel int arrays so lookups
+ * never allocate or box.
+ *
+ * Line numbers used by this class are 0-based.
+ */
+final class EditableLineIndex {
+
+    private static final char NEWLINE = '\n';
+    private static final int INITIAL_CAPACITY = 64;
+
+    /* Node storage, slot 0 is the null node with size and sum 0 */
+    private int[] left;
+    private int[] right;
+    private int[] size;
+    private int[] length;
+    private int[] sum;
+    private int[] priority;
+
+    private int root;
+    private int nodeCount;
+    private int freeNode;
+    private int seed = 0x2545F491;
+
+    /* Results of the last split */
+    private int splitLeft;
+    private int splitRight;
+
+    /**
+     * Constructs an index for an empty document, which has exactly one empty line.
+     */
+    public EditableLineIndex() {
+        clear();
+    }
+
+    /**
+     * Drops all lines and returns the index to the state of an empty document.
+     */
+    public void clear() {
+        left = new int[INITIAL_CAPACITY];
+        right = new int[INITIAL_CAPACITY];
+        size = new int[INITIAL_CAPACITY];
+        length = new int[INITIAL_CAPACITY];
+        sum = new int[INITIAL_CAPACITY];
+        priority = new int[INITIAL_CAPACITY];
+        nodeCount = 1;
+        freeNode = 0;
+        root = newNode(0);
+    }
+
+    /**
+     * Returns the number of lines, which is always at least one.
+     */
+    public int getLineCount() {
+        return size[root];
+    }
+
+    /**
+     * Returns the total number of characters covered by the index.
+     */
+    public int getTextLength() {
+        return sum[root];
+    }
+
+    /**
+     * Returns the offset of the first character of the given line. Passing the line count returns
+     * the text length.
+     *
+     * @param line The 0-based line number.
+     * @return The character offset of the line start.
+     */
+    public int getLineStart(int line) {
+        int node = root;
+        int offset = 0;
+        while (node != 0) {
+            int leftSize = size[left[node]];
+            if (line < leftSize) {
+                node = left[node];
+            } else {
+                offset += sum[left[node]];
+                if (line == leftSize) {
+                    return offset;
+                }
+                offset += length[node];
+                line -= leftSize + 1;
+                node = right[node];
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the number of characters on the given line, including its trailing newline if any.
+     *
+     * @param line The 0-based line number.
+     * @return The line length, or 0 if the line does not exist.
+     */
+    public int getLineLength(int line) {
+        int node = findNode(line);
+        return node != 0 ? length[node] : 0;
+    }
+
+    /**
+     * Returns the line containing the given character offset. Offsets at or past the end of the
+     * text map to the last line.
+     *
+     * @param offset The character offset.
+     * @return The 0-based line number.
+     */
+    public int findLine(int offset) {
+        int node = root;
+        int line = 0;
+        while (node != 0) {
+            int leftNode = left[node];
+            if (offset < sum[leftNode]) {
+                node = leftNode;
+                continue;
+            }
+            offset -= sum[leftNode];
+            line += size[leftNode];
+            if (offset < length[node]) {
+                return line;
+            }
+            offset -= length[node];
+            ++line;
+            node = right[node];
+        }
+        return line - 1;
+    }
+
+    /**
+     * Records that `count` characters taken from `chars` were inserted at `offset`.
+     *
+     * @param offset The offset the characters were inserted at.
+     * @param chars  The array holding the inserted characters.
+     * @param start  The index of the first inserted character in `chars`.
+     * @param count  The number of inserted characters.
+     */
+    public void insert(int offset, char[] chars, int start, int count) {
+        int end = start + count;
+        int firstNewline = -1;
+        for (int i = start; i < end; ++i) {
+            if (chars[i] == NEWLINE) {
+                firstNewline = i;
+                break;
+            }
+        }
+
+        int line = findLine(offset);
+        if (firstNewline < 0) {
+            addLength(line, count);
+            return;
+        }
+
+        int column = offset - getLineStart(line);
+        split(root, line);
+        int before = splitLeft;
+        split(splitRight, 1);
+        int current = splitLeft;
+        int after = splitRight;
+
+        int tail = length[current] - column;
+        length[current] = column + (firstNewline - start) + 1;
+        update(current);
+
+        int tree = merge(before, current);
+        int lineStart = firstNewline + 1;
+        for (int i = lineStart; i < end; ++i) {
+            if (chars[i] == NEWLINE) {
+                tree = merge(tree, newNode(i + 1 - lineStart));
+                lineStart = i + 1;
+            }
+        }
+        tree = merge(tree, newNode(end - lineStart + tail));
+        root = merge(tree, after);
+    }
+
+    /**
+     * Records that the characters in the range [start, end) were deleted. Only offsets are needed,
+     * so this may be called before or after the buffer itself is changed.
+     *
+     * @param start The starting offset of the deleted range (inclusive).
+     * @param end   The ending offset of the deleted range (exclusive).
+     */
+    public void delete(int start, int end) {
+        if (start >= end) {
+            return;
+        }
+
+        int first = findLine(start);
+        int last = findLine(end);
+        if (first == last) {
+            addLength(first, start - end);
+            return;
+        }
+
+        int firstStart = getLineStart(first);
+        int lastEnd = getLineStart(last) + getLineLength(last);
+
+        split(root, first);
+        int before = splitLeft;
+        split(splitRight, last - first + 1);
+        int removed = splitLeft;
+        int after = splitRight;
+
+        releaseTree(removed);
+        int merged = newNode((start - firstStart) + (lastEnd - end));
+        root = merge(merge(before, merged), after);
+    }
+
+    private int findNode(int line) {
+        int node = root;
+        while (node != 0) {
+            int leftSize = size[left[node]];
+            if (line < leftSize) {
+                node = left[node];
+            } else if (line == leftSize) {
+                return node;
+            } else {
+                line -= leftSize + 1;
+                node = right[node];
+            }
+        }
+        return 0;
+    }
+
+    /*
+     * Adds delta to the length of a line. Sums are plain totals, so every node on the path from
+     * the root can be adjusted while descending.
+     */
+    private void addLength(int line, int delta) {
+        int node = root;
+        while (node != 0) {
+            sum[node] += delta;
+            int leftSize = size[left[node]];
+            if (line < leftSize) {
+                node = left[node];
+            } else if (line == leftSize) {
+                length[node] += delta;
+                return;
+            } else {
+                line -= leftSize + 1;
+                node = right[node];
+            }
+        }
+    }
+
+    private void update(int node) {
+        size[node] = size[left[node]] + size[right[node]] + 1;
+        sum[node] = sum[left[node]] + sum[right[node]] + length[node];
+    }
+
+    private int merge(int a, int b) {
+        if (a == 0) {
+            return b;
+        }
+        if (b == 0) {
+            return a;
+        }
+        if (priority[a] > priority[b]) {
+            right[a] = merge(right[a], b);
+            update(a);
+            return a;
+        }
+        left[b] = merge(a, left[b]);
+        update(b);
+        return b;
+    }
+
+    /*
+     * Splits the tree rooted at node into its first count lines (splitLeft) and the rest
+     * (splitRight).
+     */
+    private void split(int node, int count) {
+        if (node == 0) {
+            splitLeft = 0;
+            splitRight = 0;
+            return;
+        }
+        if (size[left[node]] >= count) {
+            split(left[node], count);
+            left[node] = splitRight;
+            update(node);
+            splitRight = node;
+        } else {
+            split(right[node], count - size[left[node]] - 1);
+            right[node] = splitLeft;
+            update(node);
+            splitLeft = node;
+        }
+    }
+
+    private int newNode(int lineLength) {
+        int node;
+        if (freeNode != 0) {
+            node = freeNode;
+            freeNode = left[node];
+        } else {
+            if (nodeCount == left.length) {
+                grow();
+            }
+            node = nodeCount++;
+        }
+        left[node] = 0;
+        right[node] = 0;
+        size[node] = 1;
+        length[node] = lineLength;
+        sum[node] = lineLength;
+        priority[node] = nextPriority();
+        return node;
+    }
+
+    /*
+     * Puts every node of the given tree on the free list. The sums of pending right children are
+     * no longer needed, so they double as the links of the work stack.
+     */
+    private void releaseTree(int node) {
+        int pending = 0;
+        while (node != 0) {
+            if (right[node] != 0) {
+                sum[right[node]] = pending;
+                pending = right[node];
+            }
+            int next = left[node];
+            left[node] = freeNode;
+            freeNode = node;
+            if (next == 0 && pending != 0) {
+                next = pending;
+                pending = sum[pending];
+            }
+            node = next;
+        }
+    }
+
+    private void grow() {
+        int capacity = left.length + (left.length >> 1);
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        size = Arrays.copyOf(size, capacity);
+        length = Arrays.copyOf(length, capacity);
+        sum = Arrays.copyOf(sum, capacity);
+        priority = Arrays.copyOf(priority, capacity);
+    }
+
+    private int nextPriority() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+}
@@ -36,7 +36,8 @@ public interface EditableListener {
      *
      * @param start The starting index of the replaced text.
      * @param end The ending index of the replaced text (exclusive).
-     * @param text The replacement text.
+     * @param text The replacement text. It may be a view of the text rather than a copy, valid only
+     *             during the call; keep {@code text.toString()} instead.
      */
     void onReplaced(int start, int end, CharSequence text);
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+package com.zyron.typewriter.text;
+
+import java.lang.reflect.Method;
+
+/**
+ * Error logging of the text model. On Android it goes to android.util.Log; on a plain JVM, where
+ * that class is missing or only a stub that throws, it goes to standard error instead. The class
+ * is looked up at run time, so the model compiles and runs without the Android framework, such as
+ * for benchmarks.
+ */
+final class EditableLog {
+
+    /* android.util.Log#e(String, String), or null when not running on Android */
+    private static final Method ANDROID_LOG = findAndroidLog();
+
+    private EditableLog() {
+    }
+
+    static void e(String tag, String message) {
+        if (ANDROID_LOG != null) {
+            try {
+                ANDROID_LOG.invoke(null, tag, message);
+                return;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // Fall through to standard error
+            }
+        }
+        System.err.println("E/" + tag + ": " + message);
+    }
+
+    private static Method findAndroidLog() {
+        // ART still reports the name of its predecessor; elsewhere android.jar is only stubs
+        if (!"Dalvik".equals(System.getProperty("java.vm.name"))) {
+            return null;
+        }
+        try {
+            return Class.forName("android.util.Log").getMethod("e", String.class, String.class);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
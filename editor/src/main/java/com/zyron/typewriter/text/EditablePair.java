@@ -1,67 +0,0 @@
-package com.zyron.typewriter.text;
-
-import java.util.Objects;
-
-/**
- * Container to ease passing around a tuple of two objects. This object provides a sensible
- * implementation of equals(), returning true if equals() is true on each of the contained
- * objects.
- */
-class EditablePair<First, Second> {
-    
-    public First first;    
-    public Second second; 
-
-    /**
-     * Constructor for a Pair.
-     *
-     * @param first the first object in the Pair
-     * @param second the second object in the pair
-     */
-    public EditablePair(First first, Second second) {
-        this.first = first;
-        this.second = second;
-    }
-
-    /**
-     * Checks the two objects for equality by delegating to their respective
-     * {@link Object#equals(Object)} methods.
-     *
-     * @param o the {@link Pair} to which this one is to be checked for equality
-     * @return true if the underlying objects of the Pair are both considered
-     *         equal
-     */
-    @Override
-    public boolean equals(Object o) {
-        if (!(o instanceof EditablePair)) {
-            return false;
-        }
-        EditablePair<?, ?> p = (EditablePair<?, ?>) o;
-        return Objects.equals(p.first, first) && Objects.equals(p.second, second);
-    }
-
-    /**
-     * Compute a hash code using the hash codes of the underlying objects
-     *
-     * @return a hashcode of the Pair
-     */
-    @Override
-    public int hashCode() {
-        return (first == null ? 0 : first.hashCode()) ^ (second == null ? 0 : second.hashCode());
-    }
-
-    @Override
-    public String toString() {
-        return "Pair{" + String.valueOf(first) + " " + String.valueOf(second) + "}";
-    }
-
-    /**
-     * Convenience method for creating an appropriately typed pair.
-     * @param a the first object in the Pair
-     * @param b the second object in the pair
-     * @return a Pair that is templatized with the types of a and b
-     */
-    public static <A, B> EditablePair <A, B> create(A a, B b) {
-        return new EditablePair<A, B>(a, b);
-    }
-}
\ No newline at end of file
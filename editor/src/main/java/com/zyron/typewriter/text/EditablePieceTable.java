@@ -0,0 +1,374 @@
+package com.zyron.typewriter.text;
+
+import java.util.Arrays;
+
+/**
+ * An {@link EditableStorage} that implements the PieceTable data structure. The original text is
+ * kept exactly as it was handed over and is never copied or modified, while inserted text is
+ * appended to an add buffer that only ever grows. The document is the in-order sequence of pieces
+ * of an implicit treap, each piece naming a range of one of the two buffers, so an insert or delete
+ * anywhere in the document costs O(log pieces).
+ */
+public final class EditablePieceTable implements EditableStorage {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final CharSequence original;
+    private char[] addBuffer;
+    private int addLength;
+
+    /* Piece storage, slot 0 is the null node with sum 0 */
+    private int[] left;
+    private int[] right;
+    private int[] priority;
+    private int[] start;
+    private int[] length;
+    private int[] sum;
+    private boolean[] added;
+
+    private int root;
+    private int pieceCount;
+    private int nodeCount;
+    private int freeNode;
+    private int seed = 0x2545F491;
+
+    /* Results of the last split */
+    private int splitLeft;
+    private int splitRight;
+
+    /* Piece found by the last lookup, reused by sequential charAt calls */
+    private int lastNode;
+    private int lastNodeStart;
+
+    /**
+     * Constructs an empty piece table.
+     */
+    public EditablePieceTable() {
+        this("");
+    }
+
+    /**
+     * Constructs a piece table over the specified original text. The text is referenced, not
+     * copied, so it must not be modified by the caller afterwards.
+     *
+     * @param original The original content.
+     */
+    public EditablePieceTable(CharSequence original) {
+        this.original = (original != null) ? original : "";
+        addBuffer = new char[INITIAL_CAPACITY];
+        left = new int[INITIAL_CAPACITY];
+        right = new int[INITIAL_CAPACITY];
+        priority = new int[INITIAL_CAPACITY];
+        start = new int[INITIAL_CAPACITY];
+        length = new int[INITIAL_CAPACITY];
+        sum = new int[INITIAL_CAPACITY];
+        added = new boolean[INITIAL_CAPACITY];
+        nodeCount = 1;
+
+        if (this.original.length() > 0) {
+            root = newNode(false, 0, this.original.length());
+        }
+    }
+
+    /**
+     * Returns the number of pieces the document is currently made of.
+     *
+     * @return The piece count.
+     */
+    public int getPieceCount() {
+        return pieceCount;
+    }
+
+    @Override
+    public int length() {
+        return sum[root];
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length()) {
+            throw new IndexOutOfBoundsException("index " + index + " out of bounds");
+        }
+        if (lastNode == 0 || index < lastNodeStart || index >= lastNodeStart + length[lastNode]) {
+            findNode(index);
+        }
+        return pieceCharAt(lastNode, index - lastNodeStart);
+    }
+
+    @Override
+    public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+        if (srcBegin < 0 || srcEnd > length() || srcBegin > srcEnd) {
+            throw new IndexOutOfBoundsException("range [" + srcBegin + ", " + srcEnd + ") out of bounds");
+        }
+        copyChars(root, 0, srcBegin, srcEnd, dst, dstBegin - srcBegin);
+    }
+
+    @Override
+    public void insert(int offset, char[] chars, int start, int count) {
+        if (offset < 0 || offset > length()) {
+            throw new IndexOutOfBoundsException("offset " + offset + " out of bounds");
+        }
+        if (count == 0) {
+            return;
+        }
+        int addStart = appendToAddBuffer(chars, start, count);
+
+        // Typing usually continues the piece that was added last, which can simply grow
+        if (offset > 0) {
+            findNode(offset - 1);
+            int node = lastNode;
+            if (added[node] && this.start[node] + length[node] == addStart
+                    && lastNodeStart + length[node] == offset) {
+                addLength(offset - 1, count);
+                lastNode = 0;
+                return;
+            }
+        }
+
+        split(root, offset);
+        int before = splitLeft;
+        int after = splitRight;
+        root = merge(merge(before, newNode(true, addStart, count)), after);
+        lastNode = 0;
+    }
+
+    @Override
+    public void delete(int start, int end) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + ") out of bounds");
+        }
+        if (start == end) {
+            return;
+        }
+        split(root, start);
+        int before = splitLeft;
+        split(splitRight, end - start);
+        int removed = splitLeft;
+        int after = splitRight;
+
+        releaseTree(removed);
+        root = merge(before, after);
+        lastNode = 0;
+    }
+
+    private char pieceCharAt(int node, int index) {
+        if (added[node]) {
+            return addBuffer[start[node] + index];
+        }
+        return original.charAt(start[node] + index);
+    }
+
+    /*
+     * Locates the piece containing offset and stores it with its starting offset in lastNode and
+     * lastNodeStart.
+     */
+    private void findNode(int offset) {
+        int node = root;
+        int nodeStart = 0;
+        while (node != 0) {
+            int leftSum = sum[left[node]];
+            if (offset < leftSum) {
+                node = left[node];
+            } else if (offset < leftSum + length[node]) {
+                lastNode = node;
+                lastNodeStart = nodeStart + leftSum;
+                return;
+            } else {
+                offset -= leftSum + length[node];
+                nodeStart += leftSum + length[node];
+                node = right[node];
+            }
+        }
+        lastNode = 0;
+    }
+
+    /*
+     * Copies the part of [from, to) covered by the subtree rooted at node, whose first character
+     * sits at offset. Position p is written to dst[dstBase + p].
+     */
+    private void copyChars(int node, int offset, int from, int to, char[] dst, int dstBase) {
+        while (node != 0 && from < to) {
+            int pieceStart = offset + sum[left[node]];
+            int pieceEnd = pieceStart + length[node];
+            if (from < pieceStart) {
+                copyChars(left[node], offset, from, Math.min(to, pieceStart), dst, dstBase);
+            }
+
+            int copyStart = Math.max(from, pieceStart);
+            int copyEnd = Math.min(to, pieceEnd);
+            if (copyStart < copyEnd) {
+                copyPiece(node, copyStart - pieceStart, copyEnd - pieceStart, dst, dstBase + copyStart);
+            }
+
+            if (to <= pieceEnd) {
+                return;
+            }
+            from = Math.max(from, pieceEnd);
+            offset = pieceEnd;
+            node = right[node];
+        }
+    }
+
+    private void copyPiece(int node, int from, int to, char[] dst, int dstBegin) {
+        int first = start[node] + from;
+        int last = start[node] + to;
+        if (added[node]) {
+            System.arraycopy(addBuffer, first, dst, dstBegin, last - first);
+        } else if (original instanceof String) {
+            ((String) original).getChars(first, last, dst, dstBegin);
+        } else {
+            for (int i = first; i < last; ++i) {
+                dst[dstBegin++] = original.charAt(i);
+            }
+        }
+    }
+
+    private int appendToAddBuffer(char[] chars, int from, int count) {
+        if (addLength + count > addBuffer.length) {
+            int capacity = Math.max(addLength + count, addBuffer.length + (addBuffer.length >> 1));
+            addBuffer = Arrays.copyOf(addBuffer, capacity);
+        }
+        System.arraycopy(chars, from, addBuffer, addLength, count);
+        int addStart = addLength;
+        addLength += count;
+        return addStart;
+    }
+
+    /*
+     * Adds delta to the length of the piece containing offset, adjusting every sum on the way
+     * down from the root.
+     */
+    private void addLength(int offset, int delta) {
+        int node = root;
+        while (node != 0) {
+            sum[node] += delta;
+            int leftSum = sum[left[node]];
+            if (offset < leftSum) {
+                node = left[node];
+            } else if (offset < leftSum + length[node]) {
+                length[node] += delta;
+                return;
+            } else {
+                offset -= leftSum + length[node];
+                node = right[node];
+            }
+        }
+    }
+
+    private void update(int node) {
+        sum[node] = sum[left[node]] + sum[right[node]] + length[node];
+    }
+
+    private int merge(int a, int b) {
+        if (a == 0) {
+            return b;
+        }
+        if (b == 0) {
+            return a;
+        }
+        if (priority[a] > priority[b]) {
+            right[a] = merge(right[a], b);
+            update(a);
+            return a;
+        }
+        left[b] = merge(a, left[b]);
+        update(b);
+        return b;
+    }
+
+    /*
+     * Splits the tree rooted at node into the pieces covering its first `offset` characters
+     * (splitLeft) and the rest (splitRight). A piece straddling the split point is cut in two.
+     */
+    private void split(int node, int offset) {
+        if (node == 0) {
+            splitLeft = 0;
+            splitRight = 0;
+            return;
+        }
+        int leftSum = sum[left[node]];
+        if (offset <= leftSum) {
+            split(left[node], offset);
+            left[node] = splitRight;
+            update(node);
+            splitRight = node;
+        } else if (offset >= leftSum + length[node]) {
+            split(right[node], offset - leftSum - length[node]);
+            right[node] = splitLeft;
+            update(node);
+            splitLeft = node;
+        } else {
+            int cut = offset - leftSum;
+            int tail = newNode(added[node], start[node] + cut, length[node] - cut);
+            int rest = right[node];
+            length[node] = cut;
+            right[node] = 0;
+            update(node);
+            splitLeft = node;
+            splitRight = merge(tail, rest);
+        }
+    }
+
+    private int newNode(boolean inAddBuffer, int pieceStart, int pieceLength) {
+        int node;
+        if (freeNode != 0) {
+            node = freeNode;
+            freeNode = left[node];
+        } else {
+            if (nodeCount == left.length) {
+                grow();
+            }
+            node = nodeCount++;
+        }
+        ++pieceCount;
+        left[node] = 0;
+        right[node] = 0;
+        priority[node] = nextPriority();
+        added[node] = inAddBuffer;
+        start[node] = pieceStart;
+        length[node] = pieceLength;
+        sum[node] = pieceLength;
+        return node;
+    }
+
+    /*
+     * Puts every node of the given tree on the free list. The sums of pending right children are
+     * no longer needed, so they double as the links of the work stack.
+     */
+    private void releaseTree(int node) {
+        int pending = 0;
+        while (node != 0) {
+            if (right[node] != 0) {
+                sum[right[node]] = pending;
+                pending = right[node];
+            }
+            int next = left[node];
+            left[node] = freeNode;
+            freeNode = node;
+            --pieceCount;
+            if (next == 0 && pending != 0) {
+                next = pending;
+                pending = sum[pending];
+            }
+            node = next;
+        }
+    }
+
+    private void grow() {
+        int capacity = left.length + (left.length >> 1);
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        priority = Arrays.copyOf(priority, capacity);
+        start = Arrays.copyOf(start, capacity);
+        length = Arrays.copyOf(length, capacity);
+        sum = Arrays.copyOf(sum, capacity);
+        added = Arrays.copyOf(added, capacity);
+    }
+
+    private int nextPriority() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+}
@@ -0,0 +1,494 @@
+package com.zyron.typewriter.text;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Literal search for a text across the files of a directory tree, run on a {@link ForkJoinPool}:
+ * every directory is a task that forks one task per subdirectory and per batch of files. Files are
+ * mapped with {@link FileChannel#map} and decoded as UTF-8 chunk by chunk straight into the
+ * search buffer of an {@link EditableFinder}, with the same Boyer-Moore-Horspool scan, so no
+ * String is ever built for a file. Files that are open in the editor are searched through their
+ * live {@link Editable} instead, so unsaved edits are found and saved text that was since changed
+ * is not.
+ *
+ * Matches stream to the listener as they are found, file by file. The search can be cancelled at
+ * any time, and counts the files and bytes it read for throughput figures. Hidden entries,
+ * symbolic links to directories, files larger than the size limit and files that look binary are
+ * skipped.
+ */
+public final class EditableProjectSearch {
+
+    /**
+     * Receives the results of a search. Called on the worker threads of the pool, possibly from
+     * several at once.
+     */
+    public interface Listener {
+
+        /**
+         * Called with matches found in a file. A file may be reported in several batches, in
+         * ascending order of offset.
+         *
+         * @param file    The file.
+         * @param offsets The character offsets of the matches in the file.
+         * @param lines   The lines of the matches, 1-based.
+         * @param count   The number of matches in the arrays.
+         */
+        void onMatches(File file, int[] offsets, int[] lines, int count);
+
+        /**
+         * Called once when the search is over, whether it completed or was cancelled.
+         *
+         * @param search The search.
+         */
+        void onFinished(EditableProjectSearch search);
+    }
+
+    /** The default size above which files are skipped. */
+    public static final long DEFAULT_MAX_FILE_SIZE = 64L << 20;
+
+    /* Characters decoded and searched per step */
+    private static final int CHUNK_SIZE = 64 * 1024;
+    /* Files searched per task */
+    private static final int FILE_BATCH = 16;
+    /* Bytes at the start of a file checked for a NUL, which marks it as binary */
+    private static final int BINARY_PROBE = 1024;
+    /* Chunked passes over an open document that keeps changing before it is searched locked */
+    private static final int MAX_DOCUMENT_ATTEMPTS = 3;
+
+    private static final String TAG = "EditableProjectSearch";
+
+    private final File root;
+    private final String query;
+    private final boolean ignoreCase;
+    private final char[] pattern;
+    private final int[] shifts;
+    private final Listener listener;
+    private final Map<File, Editable> documents = new HashMap<>();
+    private long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+
+    /* Idle workers, taken for a file and put back after; dropped when the search is over */
+    private final ConcurrentLinkedQueue<Worker> workers = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean cancelled;
+    private volatile boolean finished;
+    private final AtomicLong fileCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+    private final AtomicLong matchCount = new AtomicLong();
+    private volatile long startTime;
+    private volatile long finishTime;
+    private RootTask task;
+
+    /**
+     * Constructs a search. Nothing is read until {@link #start(ForkJoinPool)}.
+     *
+     * @param root       The directory to search, or a single file.
+     * @param query      The text to find, not empty.
+     * @param ignoreCase Whether to fold case when comparing.
+     * @param listener   The listener receiving the results.
+     */
+    public EditableProjectSearch(File root, String query, boolean ignoreCase, Listener listener) {
+        if (query == null || query.isEmpty()) {
+            throw new IllegalArgumentException("query can not be empty");
+        }
+        this.root = root;
+        this.query = query;
+        this.ignoreCase = ignoreCase;
+        this.pattern = EditableFinder.fold(query.toCharArray(), ignoreCase);
+        this.shifts = EditableFinder.buildShifts(pattern);
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the documents open in the editor, which are searched through their text rather than
+     * through the file. Must be called before {@link #start(ForkJoinPool)}.
+     *
+     * @param documents The open documents, by file.
+     */
+    public void setOpenDocuments(Map<File, Editable> documents) {
+        this.documents.clear();
+        for (Map.Entry<File, Editable> entry : documents.entrySet()) {
+            this.documents.put(entry.getKey().getAbsoluteFile(), entry.getValue());
+        }
+    }
+
+    /**
+     * Sets the size above which files are skipped. Must be called before
+     * {@link #start(ForkJoinPool)}.
+     *
+     * @param bytes The size in bytes.
+     */
+    public void setMaxFileSize(long bytes) {
+        maxFileSize = Math.min(bytes, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Starts the search on a pool, such as {@link ForkJoinPool#commonPool()}.
+     *
+     * @param pool The pool to run on.
+     * @throws IllegalStateException if the search was started before.
+     */
+    public synchronized void start(ForkJoinPool pool) {
+        if (task != null) {
+            throw new IllegalStateException("search already started");
+        }
+        startTime = System.nanoTime();
+        task = new RootTask();
+        pool.execute(task);
+    }
+
+    /**
+     * Cancels the search. Files being read stop at their next chunk and the listener hears of
+     * no more matches after {@link Listener#onFinished}.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Checks if the search is over, completed or cancelled.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * Returns the number of files searched so far, open documents included.
+     */
+    public long getFileCount() {
+        return fileCount.get();
+    }
+
+    /**
+     * Returns the number of bytes searched so far, counting two per character of an open
+     * document.
+     */
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
+    public long getMatchCount() {
+        return matchCount.get();
+    }
+
+    /**
+     * Returns the nanoseconds the search has been running, or ran in total once it finished.
+     */
+    public long getElapsedNanos() {
+        if (startTime == 0) {
+            return 0;
+        }
+        return ((finishTime != 0) ? finishTime : System.nanoTime()) - startTime;
+    }
+
+    /**
+     * Returns the files searched per second so far.
+     */
+    public double getFilesPerSecond() {
+        long nanos = getElapsedNanos();
+        return (nanos > 0) ? fileCount.get() * 1e9 / nanos : 0;
+    }
+
+    /**
+     * Returns the megabytes searched per second so far.
+     */
+    public double getMegabytesPerSecond() {
+        long nanos = getElapsedNanos();
+        return (nanos > 0) ? byteCount.get() * 1e9 / nanos / (1 << 20) : 0;
+    }
+
+    /*
+     * Walks the tree and reports the end of the search once every task below it is done.
+     */
+    private final class RootTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+            try {
+                if (root.isDirectory()) {
+                    new DirectoryTask(root).compute();
+                } else {
+                    searchFile(root);
+                }
+            } finally {
+                // The buffers are only needed while searching, and the pool threads outlive it
+                workers.clear();
+                finishTime = System.nanoTime();
+                finished = true;
+                listener.onFinished(EditableProjectSearch.this);
+            }
+        }
+    }
+
+    private final class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File directory;
+
+        DirectoryTask(File directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            File[] children = directory.listFiles();
+            if (children == null || cancelled) {
+                return;
+            }
+            List<RecursiveAction> tasks = new ArrayList<>();
+            List<File> batch = new ArrayList<>();
+            for (File child : children) {
+                if (child.getName().startsWith(".")) {
+                    continue;
+                }
+                if (child.isDirectory()) {
+                    if (!Files.isSymbolicLink(child.toPath())) {
+                        tasks.add(new DirectoryTask(child));
+                    }
+                } else if (child.isFile()) {
+                    batch.add(child);
+                    if (batch.size() == FILE_BATCH) {
+                        tasks.add(new FileTask(batch));
+                        batch = new ArrayList<>();
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                tasks.add(new FileTask(batch));
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    private final class FileTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> files;
+
+        FileTask(List<File> files) {
+            this.files = files;
+        }
+
+        @Override
+        protected void compute() {
+            for (File file : files) {
+                if (cancelled) {
+                    return;
+                }
+                searchFile(file);
+            }
+        }
+    }
+
+    private void searchFile(File file) {
+        Editable document = documents.get(file.getAbsoluteFile());
+        Worker worker = workers.poll();
+        if (worker == null) {
+            worker = new Worker();
+        }
+        try {
+            if (document != null) {
+                worker.search(file, document);
+            } else {
+                searchFile(file, worker);
+            }
+        } finally {
+            workers.offer(worker);
+        }
+    }
+
+    private void searchFile(File file, Worker worker) {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            FileChannel channel = input.getChannel();
+            long size = channel.size();
+            if (size < pattern.length || size > maxFileSize) {
+                return;
+            }
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (isBinary(bytes)) {
+                return;
+            }
+            worker.search(file, bytes);
+            fileCount.incrementAndGet();
+            byteCount.addAndGet(size);
+        } catch (IOException e) {
+            EditableLog.e(TAG, "Error searching " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static boolean isBinary(ByteBuffer bytes) {
+        int end = Math.min(bytes.limit(), BINARY_PROBE);
+        for (int i = 0; i < end; ++i) {
+            if (bytes.get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * The buffers for searching one file at a time, reused from file to file.
+     */
+    private final class Worker {
+
+        private final EditableFinder.Scan scan = new EditableFinder.Scan();
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private int[] offsets = new int[64];
+        private int[] lines = new int[64];
+        private int count;
+
+        /* Line counting, at absolute offset `counted` the line is `line` */
+        private int counted;
+        private int line;
+
+        /*
+         * Decodes the file chunk by chunk into the scan buffer, keeping the last characters of a
+         * chunk in front of the next one so that matches across chunks are found.
+         */
+        void search(File file, ByteBuffer bytes) {
+            char[] buffer = scan.window(CHUNK_SIZE + pattern.length);
+            CharBuffer chars = CharBuffer.wrap(buffer);
+            decoder.reset();
+            counted = 0;
+            line = 1;
+            int base = 0;
+            int carried = 0;
+            boolean decoded = false;
+            boolean flushed = false;
+            while (!flushed && !cancelled) {
+                chars.clear();
+                chars.position(carried);
+                if (!decoded) {
+                    decoded = decoder.decode(bytes, chars, true).isUnderflow();
+                }
+                if (decoded) {
+                    flushed = decoder.flush(chars).isUnderflow();
+                }
+                scan.size = chars.position();
+                collect(scan.search(base, pattern, shifts, ignoreCase), base);
+                report(file);
+
+                carried = Math.min(scan.size, pattern.length - 1);
+                countLines(buffer, base, base + scan.size - carried);
+                System.arraycopy(buffer, scan.size - carried, buffer, 0, carried);
+                base += scan.size - carried;
+            }
+        }
+
+        /*
+         * Searches an open document in chunks copied out under short locks, starting over if it
+         * changes meanwhile; the last attempt holds the lock throughout.
+         */
+        void search(File file, Editable document) {
+            int length = 0;
+            for (int attempt = 1; attempt <= MAX_DOCUMENT_ATTEMPTS && !cancelled; ++attempt) {
+                if (attempt == MAX_DOCUMENT_ATTEMPTS) {
+                    synchronized (document) {
+                        length = searchDocument(document, false);
+                    }
+                } else {
+                    length = searchDocument(document, true);
+                }
+                if (length >= 0) {
+                    break;
+                }
+            }
+            if (length >= 0 && !cancelled) {
+                report(file);
+                fileCount.incrementAndGet();
+                byteCount.addAndGet((long) length * Character.BYTES);
+            }
+        }
+
+        /*
+         * @return the length of the document, or -1 if it changed during the search
+         */
+        private int searchDocument(Editable document, boolean checkVersion) {
+            count = 0;
+            long version = document.getVersion();
+            int length = document.length();
+            for (int start = 0; start < length && !cancelled; start += CHUNK_SIZE) {
+                int end = Math.min(length, start + CHUNK_SIZE);
+                int found;
+                synchronized (document) {
+                    if (checkVersion && document.getVersion() != version) {
+                        return -1;
+                    }
+                    scan.read(document, start, end, pattern.length);
+                    found = scan.search(start, pattern, shifts, ignoreCase);
+                    collect(found, -1);
+                    for (int i = count - found; i < count; ++i) {
+                        lines[i] = document.getLineOffset(offsets[i]);
+                    }
+                }
+            }
+            return length;
+        }
+
+        /*
+         * Appends the matches of the scan, counting lines up to each when `base` is not -1.
+         */
+        private void collect(int found, int base) {
+            if (count + found > offsets.length) {
+                offsets = Arrays.copyOf(offsets, Math.max(count + found, offsets.length * 2));
+                lines = Arrays.copyOf(lines, offsets.length);
+            }
+            for (int i = 0; i < found; ++i) {
+                offsets[count] = scan.found[i];
+                if (base >= 0) {
+                    countLines(scan.buffer, base, scan.found[i]);
+                    lines[count] = line;
+                }
+                count++;
+            }
+        }
+
+        private void countLines(char[] buffer, int base, int offset) {
+            for (int i = counted; i < offset; ++i) {
+                if (buffer[i - base] == '\n') {
+                    line++;
+                }
+            }
+            counted = Math.max(counted, offset);
+        }
+
+        private void report(File file) {
+            if (count > 0 && !cancelled) {
+                matchCount.addAndGet(count);
+                listener.onMatches(file, offsets, lines, count);
+            }
+            count = 0;
+        }
+    }
+}
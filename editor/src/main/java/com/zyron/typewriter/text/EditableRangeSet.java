@@ -0,0 +1,172 @@
+package com.zyron.typewriter.text;
+
+import java.util.Arrays;
+
+/**
+ * A set of disjoint, sorted ranges [start, end) of text offsets, such as the parts of the text a
+ * search has yet to cover, that follows the edits of the text. Not thread-safe; the owner guards
+ * it.
+ */
+final class EditableRangeSet {
+
+    private int[] ranges = new int[8];
+    private int count;
+
+    int size() {
+        return count;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    int getStart(int index) {
+        return ranges[index * 2];
+    }
+
+    int getEnd(int index) {
+        return ranges[index * 2 + 1];
+    }
+
+    void clear() {
+        count = 0;
+    }
+
+    /**
+     * Returns the total length of the ranges.
+     */
+    int length() {
+        int length = 0;
+        for (int i = 0; i < count; ++i) {
+            length += ranges[i * 2 + 1] - ranges[i * 2];
+        }
+        return length;
+    }
+
+    /**
+     * Adds a range, merging it with the ranges it touches.
+     */
+    void add(int start, int end) {
+        if (start >= end) {
+            return;
+        }
+        if ((count + 1) * 2 > ranges.length) {
+            ranges = Arrays.copyOf(ranges, ranges.length * 2);
+        }
+        int index = 0;
+        while (index < count && ranges[index * 2 + 1] < start) {
+            index++;
+        }
+        int last = index;
+        while (last < count && ranges[last * 2] <= end) {
+            start = Math.min(start, ranges[last * 2]);
+            end = Math.max(end, ranges[last * 2 + 1]);
+            last++;
+        }
+        System.arraycopy(ranges, last * 2, ranges, (index + 1) * 2, (count - last) * 2);
+        count += 1 - (last - index);
+        ranges[index * 2] = start;
+        ranges[index * 2 + 1] = end;
+    }
+
+    /**
+     * Removes a range, splitting the range around it if needed.
+     */
+    void remove(int start, int end) {
+        for (int i = 0; i < count; ++i) {
+            int rangeStart = ranges[i * 2];
+            int rangeEnd = ranges[i * 2 + 1];
+            if (rangeEnd <= start || rangeStart >= end) {
+                continue;
+            }
+            if (rangeStart < start && rangeEnd > end) {
+                ranges[i * 2 + 1] = start;
+                add(end, rangeEnd);
+                return;
+            }
+            if (rangeStart < start) {
+                ranges[i * 2 + 1] = start;
+            } else if (rangeEnd > end) {
+                ranges[i * 2] = end;
+            } else {
+                System.arraycopy(ranges, (i + 1) * 2, ranges, i * 2, (count - i - 1) * 2);
+                count--;
+                i--;
+            }
+        }
+    }
+
+    /**
+     * Checks if a range lies entirely within one of the ranges.
+     */
+    boolean contains(int start, int end) {
+        for (int i = 0; i < count; ++i) {
+            if (ranges[i * 2] <= start && ranges[i * 2 + 1] >= end) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the ranges over a change of the text. A range that reached into the removed text now
+     * reaches over the inserted text instead; ranges left empty are dropped.
+     */
+    void map(int offset, int removed, int inserted) {
+        int removedEnd = offset + removed;
+        int delta = inserted - removed;
+        for (int i = 0; i < count * 2; ++i) {
+            int position = ranges[i];
+            if (position >= removedEnd) {
+                ranges[i] = position + delta;
+            } else if (position > offset) {
+                ranges[i] = offset + ((i % 2 == 1) ? inserted : 0);
+            }
+        }
+
+        // Drop the ranges the change emptied and merge the ones it made overlap
+        int kept = 0;
+        for (int i = 0; i < count; ++i) {
+            int start = ranges[i * 2];
+            int end = ranges[i * 2 + 1];
+            if (start >= end) {
+                continue;
+            }
+            if (kept > 0 && start <= ranges[kept * 2 - 1]) {
+                ranges[kept * 2 - 1] = Math.max(end, ranges[kept * 2 - 1]);
+            } else {
+                ranges[kept * 2] = start;
+                ranges[kept * 2 + 1] = end;
+                kept++;
+            }
+        }
+        count = kept;
+    }
+
+    /**
+     * Finds the part of the ranges to work on next when working outwards from an offset, such as
+     * the start of the viewport: the first range ending after it, from the offset on, or else the
+     * first range.
+     *
+     * @param from  The offset to work from.
+     * @param range Receives the start and end of the part.
+     * @return `false` if the set is empty.
+     */
+    boolean next(int from, int[] range) {
+        if (count == 0) {
+            return false;
+        }
+        int index = 0;
+        while (index < count && ranges[index * 2 + 1] <= from) {
+            index++;
+        }
+        if (index == count) {
+            range[0] = ranges[0];
+            range[1] = ranges[1];
+        } else {
+            range[0] = Math.max(ranges[index * 2], from);
+            range[1] = ranges[index * 2 + 1];
+        }
+        return true;
+    }
+}
@@ -0,0 +1,615 @@
+package com.zyron.typewriter.text;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Regular expression find over an {@link Editable}, kept up to date while the text is edited.
+ * The text is searched on a background job in chunks of whole lines, each copied out with
+ * {@link Editable#getChars} while the text is locked and then matched unlocked through a
+ * {@link CharSequence} view of the chunk, so neither the whole text nor a snapshot of it is ever
+ * materialized. A match can span lines but not chunks.
+ *
+ * Every chunk gets a time budget, checked by the view as the matcher reads it. A pattern that
+ * backtracks catastrophically on a chunk runs out of budget, or of stack, and the chunk is
+ * skipped rather than stalling the search; the skipped length is reported. Edits drop the
+ * matches on the lines they touched and schedule those lines to be searched again.
+ *
+ * The state of a search lives under the finder's monitor, and changes only with the Editable
+ * locked as well, which is always taken first.
+ */
+public final class EditableRegexFinder {
+
+    /**
+     * Receives progress of a search. Called on a worker thread, or inside an edit.
+     */
+    public interface Listener {
+
+        /**
+         * Called when matches were added, removed or moved.
+         *
+         * @param finder The finder whose matches changed.
+         */
+        void onMatchesChanged(EditableRegexFinder finder);
+    }
+
+    /** Default time a chunk may take before it is skipped, in milliseconds. */
+    public static final long DEFAULT_CHUNK_BUDGET = 50;
+
+    /* Characters per chunk, rounded up to whole lines */
+    private static final int CHUNK_SIZE = 16 * 1024;
+    /* Cap for chunks within a single long line */
+    private static final int MAX_CHUNK_SIZE = 256 * 1024;
+    /* Quiet time after edits before the lines they touched are searched again */
+    private static final long RESCAN_DELAY = 50;
+
+    private final Editable editable;
+    private final EditableScheduler scheduler;
+    private final String jobName;
+    private Listener listener;
+    private volatile long chunkBudgetNanos = DEFAULT_CHUNK_BUDGET * 1000000L;
+
+    private Pattern pattern;
+    /* Incremented whenever the pattern changes, so steps for an older one drop their results */
+    private long generation;
+    /* The version of the text the matches and ranges refer to */
+    private long version;
+
+    /* Disjoint matches, sorted by offset */
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int matchCount;
+    /* Text not searched yet, in whole lines once aligned */
+    private EditableRangeSet pending = new EditableRangeSet();
+    private boolean aligned = true;
+    /* Text whose chunks ran out of budget */
+    private final EditableRangeSet skipped = new EditableRangeSet();
+
+    private int viewportStart;
+    private int viewportEnd;
+
+    private final EditableChangeListener changeListener = new EditableChangeListener() {
+        @Override
+        public void onChanged(List<EditableChange> changes) {
+            onEdited(changes);
+        }
+    };
+
+    /**
+     * Constructs a finder. Its matches are kept up to date until {@link #close()}.
+     *
+     * @param editable  The text to search.
+     * @param scheduler The scheduler to search on.
+     */
+    public EditableRegexFinder(Editable editable, EditableScheduler scheduler) {
+        this.editable = editable;
+        this.scheduler = scheduler;
+        this.jobName = "regex@" + Integer.toHexString(System.identityHashCode(this));
+        editable.getChangeBus().subscribe(changeListener, EditableChangeBus.DIRECT, EditableChangeBus.COALESCE_NONE);
+    }
+
+    /**
+     * Sets the listener notified as matches change.
+     *
+     * @param listener The listener, or null for none.
+     */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the time a chunk may take before it is skipped.
+     *
+     * @param millis The budget in milliseconds, such as {@link #DEFAULT_CHUNK_BUDGET}.
+     */
+    public void setChunkBudget(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("budget must be positive");
+        }
+        chunkBudgetNanos = millis * 1000000L;
+    }
+
+    /**
+     * Sets the range of the text on screen, which is searched first.
+     *
+     * @param start The offset of the first visible character.
+     * @param end   The offset after the last visible character.
+     */
+    public synchronized void setViewport(int start, int end) {
+        viewportStart = Math.max(0, start);
+        viewportEnd = Math.max(viewportStart, end);
+    }
+
+    /**
+     * Starts searching for a pattern, replacing the previous one. Empty matches are not reported.
+     * Compile with {@link Pattern#MULTILINE} for `^` and `$` to match at every line.
+     *
+     * @param pattern The pattern to find, or null to clear the matches.
+     */
+    public void find(Pattern pattern) {
+        synchronized (editable) {
+            synchronized (this) {
+                if (pattern == this.pattern) {
+                    return;
+                }
+                this.pattern = pattern;
+                generation++;
+                version = editable.getVersion();
+                matchCount = 0;
+                pending.clear();
+                skipped.clear();
+                aligned = true;
+                if (pattern != null) {
+                    pending.add(0, editable.length());
+                }
+            }
+        }
+        notifyListener();
+        if (pattern != null) {
+            scheduler.submit(new RegexJob());
+        }
+    }
+
+    /**
+     * Returns the current pattern, or null.
+     */
+    public synchronized Pattern getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Returns the number of matches found so far.
+     */
+    public synchronized int getMatchCount() {
+        return matchCount;
+    }
+
+    /**
+     * Returns the start offset of a match.
+     *
+     * @param index The index of the match, in ascending order of offset.
+     * @throws IndexOutOfBoundsException if the index is out of bounds.
+     */
+    public synchronized int getMatchStart(int index) {
+        if (index < 0 || index >= matchCount) {
+            throw new IndexOutOfBoundsException("match " + index + " out of bounds");
+        }
+        return starts[index];
+    }
+
+    /**
+     * Returns the end offset of a match, exclusive.
+     *
+     * @param index The index of the match, in ascending order of offset.
+     * @throws IndexOutOfBoundsException if the index is out of bounds.
+     */
+    public synchronized int getMatchEnd(int index) {
+        if (index < 0 || index >= matchCount) {
+            throw new IndexOutOfBoundsException("match " + index + " out of bounds");
+        }
+        return ends[index];
+    }
+
+    /**
+     * Returns the index of the first match ending after the specified offset.
+     *
+     * @param offset The offset to search from.
+     * @return The index of the match, or {@link #getMatchCount()} if there is none.
+     */
+    public synchronized int findMatch(int offset) {
+        return lowerBound(ends, matchCount, offset + 1);
+    }
+
+    /**
+     * Checks if the whole text was searched, apart from the skipped chunks.
+     */
+    public synchronized boolean isComplete() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Returns the number of characters not searched because their chunk ran out of budget.
+     */
+    public synchronized int getSkippedLength() {
+        return skipped.length();
+    }
+
+    /**
+     * Replaces the matches found as a single edit that undoes as one step. Only the matches shown
+     * are replaced, so nothing is done until the search is {@link #isComplete() complete}, or if
+     * any text was skipped; the text is not searched again here.
+     *
+     * @param replacement The replacement, in which `$n` and `${name}` stand for the groups of each
+     *                    match and `\` escapes the next character.
+     * @return The number of matches replaced, or -1 if the search is not complete, skipped text or
+     * the replacement is invalid.
+     */
+    public int replaceAll(String replacement) {
+        synchronized (editable) {
+            Pattern pattern;
+            int[] starts;
+            int[] ends;
+            int count;
+            synchronized (this) {
+                if (this.pattern == null) {
+                    return 0;
+                }
+                if (!pending.isEmpty() || !skipped.isEmpty() || version != editable.getVersion()) {
+                    return -1;
+                }
+                pattern = this.pattern;
+                count = matchCount;
+                starts = Arrays.copyOf(this.starts, count);
+                ends = Arrays.copyOf(this.ends, count);
+            }
+            // Our lock is released first, the edit takes it again to patch the matches
+            return editable.replaceAll(starts, ends, count, pattern, replacement);
+        }
+    }
+
+    /**
+     * Stops following the edits of the text and clears the matches.
+     */
+    public void close() {
+        editable.getChangeBus().unsubscribe(changeListener);
+        scheduler.cancel(jobName);
+        synchronized (this) {
+            pattern = null;
+            generation++;
+            matchCount = 0;
+            pending.clear();
+            skipped.clear();
+        }
+    }
+
+    /*
+     * Drops the matches the edits touched, shifts the others, and schedules the touched lines to
+     * be searched again. Matching never runs inside the edit, whatever the pattern.
+     */
+    private void onEdited(List<EditableChange> changes) {
+        synchronized (editable) {
+            synchronized (this) {
+                for (EditableChange change : changes) {
+                    version = change.getVersion();
+                    if (pattern != null) {
+                        patch(change.getOffset(), change.getRemoved(), change.getInserted());
+                    }
+                }
+                if (pattern == null) {
+                    return;
+                }
+                if (version == editable.getVersion()) {
+                    alignPending();
+                }
+            }
+        }
+        notifyListener();
+        scheduler.submit(new RegexJob(), RESCAN_DELAY);
+    }
+
+    private void patch(int offset, int removed, int inserted) {
+        int removedEnd = offset + removed;
+        int delta = inserted - removed;
+
+        // Drop the matches touching the change, shift the ones after it
+        int first = lowerBound(ends, matchCount, offset);
+        int last = upperBound(starts, matchCount, removedEnd);
+        int dirtyStart = offset;
+        int dirtyEnd = offset + inserted;
+        if (first < last) {
+            dirtyStart = Math.min(dirtyStart, starts[first]);
+            dirtyEnd = Math.max(dirtyEnd, (ends[last - 1] > removedEnd) ? ends[last - 1] + delta : dirtyEnd);
+        }
+        removeMatches(first, last);
+        for (int i = first; i < matchCount; ++i) {
+            starts[i] += delta;
+            ends[i] += delta;
+        }
+
+        pending.map(offset, removed, inserted);
+        // One past the end, so a deletion still marks the line it joined
+        pending.add(dirtyStart, dirtyEnd + 1);
+        skipped.map(offset, removed, inserted);
+        aligned = false;
+    }
+
+    /*
+     * Widens the pending ranges to whole lines and drops the matches touching them, widening
+     * again for matches reaching outside. Called with the Editable locked at our version.
+     */
+    private void alignPending() {
+        while (!aligned) {
+            EditableRangeSet lines = new EditableRangeSet();
+            int length = editable.length();
+            for (int i = 0; i < pending.size(); ++i) {
+                int end = Math.min(pending.getEnd(i), length);
+                lines.add(getLineStartAt(Math.min(pending.getStart(i), end)), getLineEndAt(end));
+            }
+            pending = lines;
+            aligned = true;
+            for (int i = 0; i < pending.size(); ++i) {
+                int first = upperBound(ends, matchCount, pending.getStart(i));
+                int last = lowerBound(starts, matchCount, pending.getEnd(i));
+                if (first < last) {
+                    if (starts[first] < pending.getStart(i) || ends[last - 1] > pending.getEnd(i)) {
+                        pending.add(starts[first], ends[last - 1]);
+                        aligned = false;
+                    }
+                    removeMatches(first, last);
+                }
+            }
+        }
+    }
+
+    private int getLineStartAt(int offset) {
+        return editable.getLineStart(editable.getLineOffset(offset));
+    }
+
+    private int getLineEndAt(int offset) {
+        int line = editable.getLineOffset(offset);
+        return (editable.getLineStart(line) == offset) ? offset : editable.getLineEnd(line);
+    }
+
+    private void removeMatches(int first, int last) {
+        System.arraycopy(starts, last, starts, first, matchCount - last);
+        System.arraycopy(ends, last, ends, first, matchCount - last);
+        matchCount -= last - first;
+    }
+
+    private void insertMatches(int[] foundStarts, int[] foundEnds, int count) {
+        if (count == 0) {
+            return;
+        }
+        if (matchCount + count > starts.length) {
+            int capacity = Math.max(matchCount + count, starts.length * 2);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+        }
+        int index = lowerBound(starts, matchCount, foundStarts[0]);
+        System.arraycopy(starts, index, starts, index + count, matchCount - index);
+        System.arraycopy(ends, index, ends, index + count, matchCount - index);
+        System.arraycopy(foundStarts, 0, starts, index, count);
+        System.arraycopy(foundEnds, 0, ends, index, count);
+        matchCount += count;
+    }
+
+    /*
+     * Picks the next chunk: whole lines from the viewport on, capped to the chunk size and to the
+     * viewport, so the visible lines are published first. Called with the Editable locked.
+     */
+    private boolean nextChunk(int[] range) {
+        if (!pending.next(viewportStart, range)) {
+            return false;
+        }
+        int start = getLineStartAt(range[0]);
+        if (!pending.contains(start, range[0] + 1)) {
+            // Resuming within a line too long for one chunk
+            start = range[0];
+        }
+        int end = Math.min(range[1], start + CHUNK_SIZE);
+        if (start < viewportEnd) {
+            end = Math.min(end, viewportEnd);
+        }
+        end = Math.min(Math.min(getLineEndAt(end), range[1]), start + MAX_CHUNK_SIZE);
+        range[0] = start;
+        range[1] = Math.max(end, start + 1);
+        return true;
+    }
+
+    private void notifyListener() {
+        Listener listener;
+        synchronized (this) {
+            listener = this.listener;
+        }
+        if (listener != null) {
+            listener.onMatchesChanged(this);
+        }
+    }
+
+    /*
+     * Searches the pending text chunk by chunk. The text is locked only to pick a chunk and copy
+     * it out; matching runs unlocked and its result is dropped if the text changed meanwhile, in
+     * which case the edit has already scheduled the lines again.
+     */
+    private final class RegexJob extends EditableJob {
+
+        private final Chunk chunk = new Chunk(this);
+        private int[] foundStarts = new int[64];
+        private int[] foundEnds = new int[64];
+
+        RegexJob() {
+            super(jobName, PRIORITY_INTERACTIVE, false);
+        }
+
+        @Override
+        protected boolean isSnapshotNeeded() {
+            return false;
+        }
+
+        @Override
+        protected void run(EditableSnapshot snapshot) {
+            int[] range = new int[2];
+            while (!isCancelled()) {
+                Pattern pattern;
+                long generation;
+                long version;
+                synchronized (editable) {
+                    synchronized (EditableRegexFinder.this) {
+                        // Behind a change still being delivered, whose delivery submits again
+                        if (EditableRegexFinder.this.version != editable.getVersion()
+                                || EditableRegexFinder.this.pattern == null) {
+                            return;
+                        }
+                        alignPending();
+                        if (!nextChunk(range)) {
+                            return;
+                        }
+                        pattern = EditableRegexFinder.this.pattern;
+                        generation = EditableRegexFinder.this.generation;
+                        version = EditableRegexFinder.this.version;
+                    }
+                    chunk.read(editable, range[0], range[1]);
+                }
+
+                int count = 0;
+                boolean exhausted = false;
+                chunk.setDeadline(System.nanoTime() + chunkBudgetNanos);
+                try {
+                    Matcher matcher = pattern.matcher(chunk);
+                    while (matcher.find()) {
+                        if (matcher.end() == matcher.start()) {
+                            continue;
+                        }
+                        if (count == foundStarts.length) {
+                            foundStarts = Arrays.copyOf(foundStarts, count * 2);
+                            foundEnds = Arrays.copyOf(foundEnds, count * 2);
+                        }
+                        foundStarts[count] = range[0] + matcher.start();
+                        foundEnds[count++] = range[0] + matcher.end();
+                    }
+                } catch (BudgetExceededException e) {
+                    exhausted = true;
+                } catch (StackOverflowError e) {
+                    // Deep backtracking over a long line
+                    exhausted = true;
+                }
+                if (isCancelled()) {
+                    return;
+                }
+
+                synchronized (EditableRegexFinder.this) {
+                    if (version != EditableRegexFinder.this.version || generation != EditableRegexFinder.this.generation
+                            || !pending.contains(range[0], range[1])) {
+                        continue;
+                    }
+                    if (exhausted) {
+                        skipped.add(range[0], range[1]);
+                    } else {
+                        skipped.remove(range[0], range[1]);
+                        insertMatches(foundStarts, foundEnds, count);
+                    }
+                    pending.remove(range[0], range[1]);
+                }
+                notifyListener();
+            }
+        }
+    }
+
+    /*
+     * A chunk of the text as a CharSequence for the matcher, which checks the time budget and
+     * cancellation every so many reads and aborts the match when either ran out.
+     */
+    private static final class Chunk implements CharSequence {
+
+        private static final int CHECK_INTERVAL = 4096;
+
+        private final EditableJob job;
+        private char[] chars = new char[0];
+        private int offset;
+        private int length;
+        private long deadline;
+        private int countdown = CHECK_INTERVAL;
+
+        Chunk(EditableJob job) {
+            this.job = job;
+        }
+
+        private Chunk(Chunk parent, int start, int end) {
+            this.job = parent.job;
+            this.chars = parent.chars;
+            this.offset = parent.offset + start;
+            this.length = end - start;
+            this.deadline = parent.deadline;
+        }
+
+        /*
+         * Copies [start, end) of the text. Called with the Editable locked.
+         */
+        void read(Editable editable, int start, int end) {
+            length = end - start;
+            offset = 0;
+            if (chars.length < length) {
+                chars = new char[Math.max(length, chars.length * 2)];
+            }
+            editable.getChars(start, end, chars, 0);
+        }
+
+        void setDeadline(long deadline) {
+            this.deadline = deadline;
+            countdown = CHECK_INTERVAL;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (--countdown == 0) {
+                countdown = CHECK_INTERVAL;
+                if (System.nanoTime() > deadline || job.isCancelled()) {
+                    throw BudgetExceededException.INSTANCE;
+                }
+            }
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("index " + index + " out of bounds");
+            }
+            return chars[offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > length || start > end) {
+                throw new IndexOutOfBoundsException("range [" + start + ", " + end + ") out of bounds");
+            }
+            return new Chunk(this, start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, offset, length);
+        }
+    }
+
+    /*
+     * Thrown through the matcher to abort it. Shared and without a stack trace, as it is thrown
+     * on a hot path and only ever caught.
+     */
+    private static final class BudgetExceededException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        static final BudgetExceededException INSTANCE = new BudgetExceededException();
+
+        private BudgetExceededException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /*
+     * Index of the first value at or above `key` in the first `count` values.
+     */
+    private static int lowerBound(int[] values, int count, int key) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /*
+     * Index of the first value above `key` in the first `count` values.
+     */
+    private static int upperBound(int[] values, int count, int key) {
+        return lowerBound(values, count, key + 1);
+    }
+}
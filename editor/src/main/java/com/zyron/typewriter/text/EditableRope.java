@@ -0,0 +1,380 @@
+package com.zyron.typewriter.text;
+
+import java.util.Arrays;
+
+/**
+ * An {@link EditableStorage} that implements the Rope data structure. Characters live in leaves of
+ * at most {@link #MAX_LEAF_SIZE} characters, joined by an AVL balanced tree whose internal nodes
+ * carry the length and newline count of their subtree. Inserts and deletes split and rejoin the
+ * tree in O(log n).
+ *
+ * Nodes are never modified once created; an edit copies the path it changes and shares the rest.
+ * Taking a {@link Snapshot} is therefore O(1), and the snapshot stays readable from any thread
+ * without locking while the rope keeps changing. The newline counts kept in the tree serve as the
+ * snapshot's line index.
+ */
+public final class EditableRope implements EditableStorage {
+
+    /** The maximum number of characters held by a leaf. */
+    public static final int MAX_LEAF_SIZE = 512;
+
+    private static final char NEWLINE = '\n';
+    private static final Node EMPTY = new Leaf(new char[0]);
+
+    private volatile Node root;
+
+    /* Results of the last split */
+    private Node splitLeft;
+    private Node splitRight;
+
+    /**
+     * Constructs an empty rope.
+     */
+    public EditableRope() {
+        root = EMPTY;
+    }
+
+    /**
+     * Constructs a rope holding a copy of the specified CharSequence.
+     *
+     * @param text The initial content.
+     */
+    public EditableRope(CharSequence text) {
+        int length = (text != null) ? text.length() : 0;
+        char[] chars = new char[length];
+        for (int i = 0; i < length; ++i) {
+            chars[i] = text.charAt(i);
+        }
+        root = build(chars, 0, length);
+    }
+
+    /**
+     * Returns an immutable view of the current content. This only reads the current root, so it
+     * costs O(1).
+     *
+     * @param version The version of the owning {@link Editable}.
+     * @return The snapshot.
+     */
+    Snapshot snapshot(long version) {
+        return new Snapshot(version, root);
+    }
+
+    @Override
+    public int length() {
+        return root.length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return charAt(root, index);
+    }
+
+    @Override
+    public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+        getChars(root, srcBegin, srcEnd, dst, dstBegin);
+    }
+
+    @Override
+    public void insert(int offset, char[] chars, int start, int count) {
+        Node node = root;
+        if (offset < 0 || offset > node.length) {
+            throw new IndexOutOfBoundsException("offset " + offset + " out of bounds");
+        }
+        if (count == 0) {
+            return;
+        }
+        split(node, offset);
+        Node before = splitLeft;
+        Node after = splitRight;
+        root = join(join(before, build(chars, start, start + count)), after);
+        splitLeft = splitRight = null;
+    }
+
+    @Override
+    public void delete(int start, int end) {
+        Node node = root;
+        if (start < 0 || end > node.length || start > end) {
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + ") out of bounds");
+        }
+        if (start == end) {
+            return;
+        }
+        split(node, end);
+        Node after = splitRight;
+        split(splitLeft, start);
+        root = join(splitLeft, after);
+        splitLeft = splitRight = null;
+    }
+
+    /*
+     * Splits node into the part before offset (splitLeft) and the rest (splitRight).
+     */
+    private void split(Node node, int offset) {
+        if (offset <= 0) {
+            splitLeft = EMPTY;
+            splitRight = node;
+        } else if (offset >= node.length) {
+            splitLeft = node;
+            splitRight = EMPTY;
+        } else if (node instanceof Leaf) {
+            char[] chars = ((Leaf) node).chars;
+            splitLeft = new Leaf(Arrays.copyOfRange(chars, 0, offset));
+            splitRight = new Leaf(Arrays.copyOfRange(chars, offset, chars.length));
+        } else {
+            Branch branch = (Branch) node;
+            int leftLength = branch.left.length;
+            if (offset < leftLength) {
+                split(branch.left, offset);
+                splitRight = join(splitRight, branch.right);
+            } else if (offset > leftLength) {
+                split(branch.right, offset - leftLength);
+                splitLeft = join(branch.left, splitLeft);
+            } else {
+                splitLeft = branch.left;
+                splitRight = branch.right;
+            }
+        }
+    }
+
+    /*
+     * Concatenates two trees, keeping the AVL balance. Costs O(|height(a) - height(b)|).
+     */
+    private static Node join(Node a, Node b) {
+        if (a.length == 0) {
+            return b;
+        }
+        if (b.length == 0) {
+            return a;
+        }
+        if (a instanceof Leaf && b instanceof Leaf && a.length + b.length <= MAX_LEAF_SIZE) {
+            char[] chars = Arrays.copyOf(((Leaf) a).chars, a.length + b.length);
+            System.arraycopy(((Leaf) b).chars, 0, chars, a.length, b.length);
+            return new Leaf(chars);
+        }
+        if (a.height > b.height + 1) {
+            Branch branch = (Branch) a;
+            return balance(branch.left, join(branch.right, b));
+        }
+        if (b.height > a.height + 1) {
+            Branch branch = (Branch) b;
+            return balance(join(a, branch.left), branch.right);
+        }
+        return new Branch(a, b);
+    }
+
+    private static Node balance(Node left, Node right) {
+        if (left.height > right.height + 1) {
+            Branch l = (Branch) left;
+            if (l.left.height >= l.right.height) {
+                return new Branch(l.left, new Branch(l.right, right));
+            }
+            Branch lr = (Branch) l.right;
+            return new Branch(new Branch(l.left, lr.left), new Branch(lr.right, right));
+        }
+        if (right.height > left.height + 1) {
+            Branch r = (Branch) right;
+            if (r.right.height >= r.left.height) {
+                return new Branch(new Branch(left, r.left), r.right);
+            }
+            Branch rl = (Branch) r.left;
+            return new Branch(new Branch(left, rl.left), new Branch(rl.right, r.right));
+        }
+        return new Branch(left, right);
+    }
+
+    private static Node build(char[] chars, int start, int end) {
+        int length = end - start;
+        if (length <= MAX_LEAF_SIZE) {
+            return length == 0 ? EMPTY : new Leaf(Arrays.copyOfRange(chars, start, end));
+        }
+        int middle = start + length / 2;
+        return new Branch(build(chars, start, middle), build(chars, middle, end));
+    }
+
+    private static char charAt(Node node, int index) {
+        if (index < 0 || index >= node.length) {
+            throw new IndexOutOfBoundsException("index " + index + " out of bounds");
+        }
+        while (node instanceof Branch) {
+            Branch branch = (Branch) node;
+            if (index < branch.left.length) {
+                node = branch.left;
+            } else {
+                index -= branch.left.length;
+                node = branch.right;
+            }
+        }
+        return ((Leaf) node).chars[index];
+    }
+
+    private static void getChars(Node node, int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+        if (srcBegin < 0 || srcEnd > node.length || srcBegin > srcEnd) {
+            throw new IndexOutOfBoundsException("range [" + srcBegin + ", " + srcEnd + ") out of bounds");
+        }
+        copyChars(node, srcBegin, srcEnd, dst, dstBegin);
+    }
+
+    private static void copyChars(Node node, int from, int to, char[] dst, int dstBegin) {
+        while (from < to) {
+            if (node instanceof Leaf) {
+                System.arraycopy(((Leaf) node).chars, from, dst, dstBegin, to - from);
+                return;
+            }
+            Branch branch = (Branch) node;
+            int leftLength = branch.left.length;
+            if (from < leftLength) {
+                int leftEnd = Math.min(to, leftLength);
+                copyChars(branch.left, from, leftEnd, dst, dstBegin);
+                dstBegin += leftEnd - from;
+                from = leftEnd;
+            }
+            from -= leftLength;
+            to -= leftLength;
+            node = branch.right;
+        }
+    }
+
+    /*
+     * Returns the offset just past the given number of newlines, or 0 for none.
+     */
+    private static int getNewlineEnd(Node node, int newlines) {
+        int offset = 0;
+        if (newlines <= 0) {
+            return 0;
+        }
+        while (node instanceof Branch) {
+            Branch branch = (Branch) node;
+            if (newlines <= branch.left.newlines) {
+                node = branch.left;
+            } else {
+                newlines -= branch.left.newlines;
+                offset += branch.left.length;
+                node = branch.right;
+            }
+        }
+        char[] chars = ((Leaf) node).chars;
+        for (int i = 0; i < chars.length; ++i) {
+            if (chars[i] == NEWLINE && --newlines == 0) {
+                return offset + i + 1;
+            }
+        }
+        return offset + chars.length;
+    }
+
+    /*
+     * Returns the number of newlines before the given offset.
+     */
+    private static int countNewlines(Node node, int offset) {
+        int newlines = 0;
+        while (node instanceof Branch) {
+            Branch branch = (Branch) node;
+            if (offset < branch.left.length) {
+                node = branch.left;
+            } else {
+                newlines += branch.left.newlines;
+                offset -= branch.left.length;
+                node = branch.right;
+            }
+        }
+        char[] chars = ((Leaf) node).chars;
+        int end = Math.min(offset, chars.length);
+        for (int i = 0; i < end; ++i) {
+            if (chars[i] == NEWLINE) {
+                ++newlines;
+            }
+        }
+        return newlines;
+    }
+
+    /**
+     * An immutable version of a rope's content, sharing the rope's nodes.
+     */
+    public static final class Snapshot extends EditableSnapshot {
+
+        private final Node root;
+
+        private Snapshot(long version, Node root) {
+            super(version);
+            this.root = root;
+        }
+
+        @Override
+        public int length() {
+            return root.length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return EditableRope.charAt(root, index);
+        }
+
+        @Override
+        public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+            EditableRope.getChars(root, srcBegin, srcEnd, dst, dstBegin);
+        }
+
+        @Override
+        public int getLineCount() {
+            return root.newlines + 1;
+        }
+
+        @Override
+        public int getLineStart(int line) {
+            if (line <= 0 || line > getLineCount()) {
+                throw new IndexOutOfBoundsException("line " + line + " out of bounds");
+            }
+            return getNewlineEnd(root, line - 1);
+        }
+
+        @Override
+        public int getLineOffset(int charOffset) {
+            if (charOffset < 0 || charOffset > root.length) {
+                throw new IndexOutOfBoundsException("offset " + charOffset + " out of bounds");
+            }
+            return countNewlines(root, charOffset) + 1;
+        }
+    }
+
+    private abstract static class Node {
+        final int length;
+        final int newlines;
+        final int height;
+
+        Node(int length, int newlines, int height) {
+            this.length = length;
+            this.newlines = newlines;
+            this.height = height;
+        }
+    }
+
+    private static final class Leaf extends Node {
+        final char[] chars;
+
+        Leaf(char[] chars) {
+            super(chars.length, countNewlines(chars), 0);
+            this.chars = chars;
+        }
+
+        private static int countNewlines(char[] chars) {
+            int newlines = 0;
+            for (char c : chars) {
+                if (c == NEWLINE) {
+                    ++newlines;
+                }
+            }
+            return newlines;
+        }
+    }
+
+    private static final class Branch extends Node {
+        final Node left;
+        final Node right;
+
+        Branch(Node left, Node right) {
+            super(left.length + right.length, left.newlines + right.newlines,
+                    Math.max(left.height, right.height) + 1);
+            this.left = left;
+            this.right = right;
+        }
+    }
+}
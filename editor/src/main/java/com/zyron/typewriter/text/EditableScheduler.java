@@ -0,0 +1,316 @@
+package com.zyron.typewriter.text;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link EditableJob}s for one {@link Editable} on a small, bounded pool of background
+ * threads. Queued jobs run in order of priority, then of submission. Every job that needs one gets
+ * a snapshot of the version it was submitted for, and jobs that asked for it are cancelled by the
+ * first change after that version, whether queued or running. Jobs submitted with a debounce delay
+ * only run once no job of the same name was submitted for that long, so a burst of keystrokes
+ * costs one run. Time spent waiting and running is recorded per job and in total.
+ */
+public final class EditableScheduler {
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final String TAG = "EditableScheduler";
+
+    private final Editable editable;
+    private final int threadCount;
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService debouncer;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /* Jobs queued or running */
+    private final Set<EditableJob> active = Collections.newSetFromMap(new ConcurrentHashMap<EditableJob, Boolean>());
+    /* Debounced jobs waiting for their delay, by name, guarded by itself */
+    private final Map<String, ScheduledFuture<?>> debounced = new HashMap<>();
+
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+
+    /* Cancels stale jobs from inside the edit that made them stale */
+    private final EditableChangeListener staleListener = new EditableChangeListener() {
+        @Override
+        public void onChanged(List<EditableChange> changes) {
+            cancelStale(changes.get(changes.size() - 1).getVersion());
+        }
+    };
+
+    /**
+     * Constructs a scheduler with the default number of threads.
+     *
+     * @param editable The text the jobs work on.
+     */
+    public EditableScheduler(Editable editable) {
+        this(editable, getDefaultThreadCount());
+    }
+
+    /**
+     * Constructs a scheduler.
+     *
+     * @param editable    The text the jobs work on.
+     * @param threadCount The most jobs that run at the same time.
+     */
+    public EditableScheduler(Editable editable, int threadCount) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("thread count must be positive");
+        }
+        this.editable = editable;
+        this.threadCount = threadCount;
+        workers = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new NamedThreadFactory(TAG));
+        workers.allowCoreThreadTimeOut(true);
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory(TAG + "-debounce"));
+        timer.setRemoveOnCancelPolicy(true);
+        debouncer = timer;
+
+        editable.getChangeBus().subscribe(staleListener, EditableChangeBus.DIRECT, EditableChangeBus.COALESCE_NONE);
+    }
+
+    /**
+     * Returns the default number of threads: half the cores, at most two, leaving the rest to the
+     * UI and the system.
+     */
+    public static int getDefaultThreadCount() {
+        return Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * Queues a job against the current version of the text. A queued job of the same name that
+     * has not started yet is cancelled, as it is superseded.
+     *
+     * @param job The job to run.
+     */
+    public void submit(EditableJob job) {
+        if (job.getState() != EditableJob.State.PENDING) {
+            throw new IllegalStateException("job " + job.getName() + " was already submitted");
+        }
+        for (EditableJob other : active) {
+            if (other.getState() == EditableJob.State.QUEUED && other.getName().equals(job.getName())) {
+                cancel(other);
+            }
+        }
+
+        EditableSnapshot snapshot = job.isSnapshotNeeded() ? editable.snapshot() : null;
+        long version = (snapshot != null) ? snapshot.getVersion() : editable.getVersion();
+        job.onQueued(version);
+        active.add(job);
+        if (job.isCancelWhenStale() && editable.getVersion() != version) {
+            // Changed before the job was registered, the listener could not see it
+            cancel(job);
+            return;
+        }
+        try {
+            workers.execute(new Task(job, snapshot, sequence.getAndIncrement()));
+        } catch (RejectedExecutionException e) {
+            EditableLog.e(TAG, "Error submitting job " + job.getName() + ": " + e.getMessage());
+            cancel(job);
+        }
+    }
+
+    /**
+     * Queues a job once no job of the same name was submitted for `debounceMillis`. The job
+     * targets the version current at that moment.
+     *
+     * @param job            The job to run.
+     * @param debounceMillis The quiet time to wait for, in milliseconds.
+     */
+    public void submit(final EditableJob job, long debounceMillis) {
+        if (debounceMillis <= 0) {
+            submit(job);
+            return;
+        }
+        synchronized (debounced) {
+            ScheduledFuture<?> previous = debounced.remove(job.getName());
+            if (previous != null) {
+                previous.cancel(false);
+            }
+            try {
+                debounced.put(job.getName(), debouncer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (debounced) {
+                            debounced.remove(job.getName());
+                        }
+                        submit(job);
+                    }
+                }, debounceMillis, TimeUnit.MILLISECONDS));
+            } catch (RejectedExecutionException e) {
+                EditableLog.e(TAG, "Error debouncing job " + job.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Cancels every job of the specified name, debounced, queued or running.
+     *
+     * @param name The name of the jobs.
+     */
+    public void cancel(String name) {
+        synchronized (debounced) {
+            ScheduledFuture<?> pending = debounced.remove(name);
+            if (pending != null) {
+                pending.cancel(false);
+            }
+        }
+        for (EditableJob job : active) {
+            if (job.getName().equals(name)) {
+                cancel(job);
+            }
+        }
+    }
+
+    /**
+     * Cancels every job.
+     */
+    public void cancelAll() {
+        synchronized (debounced) {
+            for (ScheduledFuture<?> pending : debounced.values()) {
+                pending.cancel(false);
+            }
+            debounced.clear();
+        }
+        for (EditableJob job : active) {
+            cancel(job);
+        }
+    }
+
+    /**
+     * Cancels every job and stops the threads. The scheduler can not be used afterwards.
+     */
+    public void shutdown() {
+        editable.getChangeBus().unsubscribe(staleListener);
+        cancelAll();
+        debouncer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Returns the most jobs that run at the same time.
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Returns the number of jobs queued or running.
+     */
+    public int getActiveCount() {
+        return active.size();
+    }
+
+    /**
+     * Returns the nanoseconds all jobs have spent running so far.
+     */
+    public long getBusyNanos() {
+        return busyNanos.get();
+    }
+
+    /**
+     * Returns the number of jobs that ran to completion.
+     */
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * Returns the number of jobs that were cancelled, explicitly or as stale.
+     */
+    public long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    private void cancelStale(long version) {
+        for (EditableJob job : active) {
+            if (job.isCancelWhenStale() && job.getVersion() < version) {
+                cancel(job);
+            }
+        }
+    }
+
+    private void cancel(EditableJob job) {
+        if (!job.isCancelled() && job.getState() != EditableJob.State.DONE) {
+            job.cancel();
+            cancelledCount.incrementAndGet();
+        }
+        if (job.getState() != EditableJob.State.RUNNING) {
+            active.remove(job);
+        }
+    }
+
+    private final class Task implements Runnable, Comparable<Task> {
+
+        private final EditableJob job;
+        private final EditableSnapshot snapshot;
+        private final long sequence;
+
+        Task(EditableJob job, EditableSnapshot snapshot, long sequence) {
+            this.job = job;
+            this.snapshot = snapshot;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (job.getPriority() != other.job.getPriority()) {
+                return (job.getPriority() < other.job.getPriority()) ? -1 : 1;
+            }
+            return (sequence < other.sequence) ? -1 : (sequence == other.sequence) ? 0 : 1;
+        }
+
+        @Override
+        public void run() {
+            if (!job.onStarted()) {
+                active.remove(job);
+                return;
+            }
+            try {
+                job.run(snapshot);
+            } catch (RuntimeException e) {
+                EditableLog.e(TAG, "Error running job " + job.getName() + ": " + e.getMessage());
+            } finally {
+                job.onFinished();
+                busyNanos.addAndGet(job.getRunNanos());
+                if (job.getState() == EditableJob.State.DONE) {
+                    completedCount.incrementAndGet();
+                }
+                active.remove(job);
+            }
+        }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+}
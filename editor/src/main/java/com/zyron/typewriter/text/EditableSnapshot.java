@@ -0,0 +1,121 @@
+package com.zyron.typewriter.text;
+
+/**
+ * An immutable, versioned view of the content of an {@link Editable}, taken with
+ * {@link Editable#snapshot()}. A snapshot carries its own line index and never changes, so
+ * background readers such as highlighters, indexers or autosave can use it from any thread without
+ * locking while the Editable keeps being edited. Line numbers are 1-based like those of
+ * {@link Editable}.
+ */
+public abstract class EditableSnapshot implements CharSequence {
+
+    private final long version;
+
+    EditableSnapshot(long version) {
+        this.version = version;
+    }
+
+    /**
+     * Returns the version of the Editable this snapshot was taken at. Two snapshots of the same
+     * Editable with the same version hold the same text.
+     *
+     * @return The version number.
+     */
+    public final long getVersion() {
+        return version;
+    }
+
+    /**
+     * Copies the characters in the range [srcBegin, srcEnd) into `dst`, starting at `dstBegin`.
+     *
+     * @param srcBegin The starting offset of the range to copy (inclusive).
+     * @param srcEnd   The ending offset of the range to copy (exclusive).
+     * @param dst      The destination array.
+     * @param dstBegin The index in `dst` the first character is written to.
+     * @throws IndexOutOfBoundsException if the range is out of bounds.
+     */
+    public abstract void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin);
+
+    /**
+     * Returns the total number of lines.
+     *
+     * @return The line count.
+     */
+    public abstract int getLineCount();
+
+    /**
+     * Gets the character offset of the first character of the specified line.
+     *
+     * @param line The line index (1-based).
+     * @return The character offset of the line start.
+     * @throws IndexOutOfBoundsException if the line does not exist.
+     */
+    public abstract int getLineStart(int line);
+
+    /**
+     * Gets the line number that charOffset is on.
+     *
+     * @param charOffset The character offset.
+     * @return The line number (1-based).
+     * @throws IndexOutOfBoundsException if the offset is out of bounds.
+     */
+    public abstract int getLineOffset(int charOffset);
+
+    /**
+     * Finds the number of characters on the specified line, not counting its trailing newline.
+     *
+     * @param line The line index (1-based).
+     * @return The number of characters in the line.
+     * @throws IndexOutOfBoundsException if the line does not exist.
+     */
+    public int getLineLength(int line) {
+        int start = getLineStart(line);
+        if (line < getLineCount()) {
+            return getLineStart(line + 1) - 1 - start;
+        }
+        return length() - start;
+    }
+
+    /**
+     * Copies the characters of the specified line, not counting its trailing newline, into `dest`
+     * starting at `destoff`.
+     *
+     * @param line    The line index (1-based).
+     * @param dest    The destination array.
+     * @param destoff The index in `dest` the first character is written to.
+     * @return The number of characters copied.
+     * @throws IndexOutOfBoundsException if the line does not exist or `dest` cannot hold it.
+     */
+    public int getLineChars(int line, char[] dest, int destoff) {
+        int start = getLineStart(line);
+        int length = getLineLength(line);
+        getChars(start, start + length, dest, destoff);
+        return length;
+    }
+
+    /**
+     * Returns the text of the specified line, not counting its trailing newline.
+     *
+     * @param line The line index (1-based).
+     * @return The text on the line.
+     * @throws IndexOutOfBoundsException if the line does not exist.
+     */
+    public String getLineString(int line) {
+        int start = getLineStart(line);
+        return subSequence(start, start + getLineLength(line)).toString();
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        char[] chars = new char[end - start];
+        getChars(start, end, chars, 0);
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        char[] chars = new char[length()];
+        getChars(0, chars.length, chars, 0);
+        return new String(chars);
+    }
+}
@@ -1,19 +1,82 @@
 package com.zyron.typewriter.text;
 
-import java.util.LinkedList;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 
+/**
+ * Undo/redo history of an {@link Editable}. Actions live in an array used as a ring buffer, so
+ * reaching the newest action is O(1). The history is bounded by a byte budget covering the text
+ * the actions hold; once it is exceeded, the oldest groups are evicted, however few actions that
+ * leaves. Consecutive typing or backspacing extends the last action instead of adding new ones.
+ *
+ * With a spill file set, history is never evicted. Instead the text of actions beyond the byte
+ * budget, or older than the spill age, is compressed into the file and read back when a deep undo
+ * reaches it, so undo is unlimited while only a hot tier of recent text stays on the heap.
+ *
+ * With a journal open, every action is also written to a memory-mapped file keyed by the document,
+ * one action behind so that typing bursts are written once they are complete. Older groups then
+ * leave memory instead of being evicted, and after a restart the history is read back from the
+ * journal one group at a time as undo reaches it.
+ *
+ * A replace-all is a single action that keeps where the ranges were, what they held and what
+ * replaced them, with a text shared by every range kept once, rather than one pair of actions
+ * holding the text of each range.
+ *
+ * Every action pushed moves the history one revision forward. Every `checkpointInterval`
+ * revisions the action is given a snapshot of the text right after it, so {@link #jumpTo(int)} can
+ * restore the checkpoint nearest to any revision by copying only the span the actions in between
+ * touched, and then replay at most half an interval of actions.
+ */
 class EditableStack {
-    private static final int MAX_STACK_SIZE = 1000; // Limit to 200 actions
+    private static final int MAX_STACK_SIZE = 1000; // Actions kept before the oldest group is evicted
+    /** The default byte budget of the history. */
+    static final long DEFAULT_BYTE_BUDGET = 8L << 20;
+    /* Estimated size of an action without its text */
+    private static final int ACTION_OVERHEAD = 48;
+    /** The default number of revisions between checkpoints. */
+    static final int DEFAULT_CHECKPOINT_INTERVAL = 64;
+    /* Estimated size of a checkpoint sharing its structure with the text */
+    private static final int CHECKPOINT_OVERHEAD = 64;
+    /* A checkpoint copying the text may use at most this share of the byte budget */
+    private static final int CHECKPOINT_SHARE = 8;
+    /* Flags of an encoded replacement, set when every range has the same text on that side */
+    private static final int REPLACE_OLD_SHARED = 1;
+    private static final int REPLACE_NEW_SHARED = 2;
     
     private boolean isBatchEdit;
     /* for grouping batch operations */
     private int groupId;
-    /* where new entries should go */
+    /* where new entries should go, counted from the oldest entry */
     private int top;
-    /* timestamp for the previous edit operation */
-    private long lastEditTime;
+    /* timestamp for the previous edit operation, -1 if the next edit must not be merged */
+    private long lastEditTime = -1;
 
-    private LinkedList<Action> stack = new LinkedList<>();
+    /* Ring buffer of actions, the oldest at index head */
+    private Action[] stack = new Action[MAX_STACK_SIZE];
+    private int head;
+    private int size;
+
+    private long byteBudget = DEFAULT_BYTE_BUDGET;
+    private long usedBytes;
+
+    /* Cold tier, the text of the first `spilled` entries is in spillFile or not recorded at all */
+    private EditableStackFile spillFile;
+    private long spillAge;
+    private int spilled;
+    private int spillReferences;
+
+    /* Persistent tier, the `journalBelow` oldest undo actions are only in the journal */
+    private EditableJournal journal;
+    private int journalBelow;
+    private int journalCursor = -1;
+    private int lastRecord = -1;
+
+    /* Number of actions evicted for good, the revision of the oldest action kept */
+    private int dropped;
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+    private static final String TAG = "EditableStack";
 
     private Editable editable; // Field to store the Editable reference
 
@@ -21,6 +84,361 @@ class EditableStack {
         this.editable = editable;
     }
 
+    /**
+     * Sets the number of bytes of text the history may hold. Oldest groups are evicted when it is
+     * exceeded, but the most recent group is always kept.
+     *
+     * @param byteBudget The budget in bytes.
+     */
+    public void setByteBudget(long byteBudget) {
+        if (byteBudget < 0) {
+            throw new IllegalArgumentException("byte budget can not be negative");
+        }
+        this.byteBudget = byteBudget;
+        evict();
+    }
+
+    /**
+     * Sets the file cold history is spilled to, or null to stop spilling. The file is truncated
+     * and owned by the history until another one is set. Stopping drops the history that was
+     * spilled.
+     *
+     * @param path The spill file, or null.
+     * @throws IOException if the file can not be opened.
+     */
+    public void setSpillFile(File path) throws IOException {
+        if (path != null) {
+            closeJournal();
+        }
+        EditableStackFile file = (path != null) ? new EditableStackFile(path) : null;
+        if (spillFile != null) {
+            while (spilled > 0 && size > 0) {
+                removeOldestGroup();
+            }
+            closeSpillFile();
+        }
+        spillFile = file;
+        evict();
+    }
+
+    /**
+     * Sets the number of revisions between checkpoints, which bounds the work of a jump.
+     *
+     * @param interval The interval, or 0 to take no checkpoints.
+     */
+    public void setCheckpointInterval(int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("checkpoint interval can not be negative");
+        }
+        checkpointInterval = interval;
+    }
+
+    /**
+     * Returns the current revision, the number of actions applied since the history began.
+     */
+    public int getRevision() {
+        return getBaseRevision() + top;
+    }
+
+    /**
+     * Returns the oldest revision that can still be reached.
+     */
+    public int getOldestRevision() {
+        return dropped;
+    }
+
+    /**
+     * Returns the newest revision that can be reached, the current one unless there is redo.
+     */
+    public int getNewestRevision() {
+        return getBaseRevision() + size;
+    }
+
+    /**
+     * Brings the text to the specified revision as one edit of the Editable. The nearest
+     * checkpoint is restored first, so the work is bounded by the checkpoint interval rather than
+     * by the distance travelled. Undo and redo continue from the new revision.
+     *
+     * @param revision The revision, between the oldest and newest ones.
+     * @return `true` if the text is now at that revision.
+     */
+    public boolean jumpTo(int revision) {
+        if (revision < dropped || revision > getNewestRevision()) {
+            return false;
+        }
+        while (revision < getBaseRevision()) {
+            loadJournalGroup();
+        }
+        int target = revision - getBaseRevision();
+        if (target == top) {
+            return true;
+        }
+        lastEditTime = -1;
+        if (top > 0) {
+            Action action = get(top - 1);
+            if (action instanceof InsertAction && action.data == null && action.spillPosition < 0) {
+                record(action);
+            }
+        }
+
+        int from = top;
+        for (int i = 0; i < size; i++) {
+            if (get(i).checkpoint != null && Math.abs(i + 1 - target) < Math.abs(from - target)) {
+                from = i + 1;
+            }
+        }
+        if (from != top) {
+            if (!restore(from)) {
+                clear();
+                return false;
+            }
+            top = from;
+        }
+
+        if (target < top && !replay(top - 1, top - target, true)
+                || target > top && !replay(top, target - top, false)) {
+            clear();
+            return false;
+        }
+        top = target;
+        spilled = Math.min(spilled, top);
+        return true;
+    }
+
+    private int getBaseRevision() {
+        return dropped + journalBelow;
+    }
+
+    /*
+     * Brings the text to the checkpoint of the action at `position - 1`. Only the window the
+     * actions between there and top touched can differ, so only that window is copied back.
+     */
+    private boolean restore(int position) {
+        EditableSnapshot checkpoint = get(position - 1).checkpoint;
+        boolean undo = position < top;
+        int[] window = findWindow(undo ? top - 1 : top, Math.abs(top - position), undo);
+        int windowStart = window[0];
+        int windowTail = window[1];
+
+        try {
+            char[] chars = new char[checkpoint.length() - windowTail - windowStart];
+            checkpoint.getChars(windowStart, windowStart + chars.length, chars, 0);
+            editable.replaceChars(windowStart, editable.length() - windowTail, chars);
+            return true;
+        } catch (IndexOutOfBoundsException e) {
+            EditableLog.e(TAG, "Error restoring undo checkpoint: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /*
+     * Finds the lowest offset reached by `count` actions starting at `first`, and the length of
+     * the shortest suffix of the text they leave alone. Only the offsets of the actions are used,
+     * so their text need not be loaded.
+     *
+     * @return the window start and tail length
+     */
+    private int[] findWindow(int first, int count, boolean undo) {
+        int step = undo ? -1 : 1;
+        int length = editable.length();
+        int windowStart = length;
+        int windowTail = length;
+        int newLength = length;
+        for (int i = 0, index = first; i < count; i++, index += step) {
+            Action action = get(index);
+            int removed;
+            int inserted;
+            if (action instanceof ReplaceAction) {
+                int replaced = ((ReplaceAction) action).replacedEnd - action.start;
+                removed = undo ? replaced : action.end - action.start;
+                inserted = undo ? action.end - action.start : replaced;
+            } else {
+                boolean removes = (action instanceof InsertAction) == undo;
+                removed = removes ? action.end - action.start : 0;
+                inserted = removes ? 0 : action.end - action.start;
+            }
+            windowStart = Math.min(windowStart, action.start);
+            windowTail = Math.min(windowTail, newLength - action.start - removed);
+            newLength += inserted - removed;
+        }
+        return new int[] {windowStart, windowTail};
+    }
+
+    /*
+     * Gives an action a snapshot of the text right after it every `checkpointInterval` revisions,
+     * unless copying the text would take too much of the byte budget. Must be called while the
+     * action is the last one applied.
+     */
+    private void checkpoint(Action action) {
+        if (checkpointInterval == 0 || action.checkpoint != null
+                || (getBaseRevision() + top) % checkpointInterval != 0) {
+            return;
+        }
+        if (!editable.isSnapshotShared()
+                && (long) editable.length() * Character.BYTES > byteBudget / CHECKPOINT_SHARE) {
+            return;
+        }
+        usedBytes -= action.getSize();
+        action.checkpoint = editable.snapshot();
+        usedBytes += action.getSize();
+    }
+
+    /**
+     * Opens the undo journal of a document, replacing the current history. If the journal holds a
+     * checkpoint taken when the document had the specified content hash, the history up to that
+     * checkpoint is restored; it is read from the journal lazily as undo reaches it. Otherwise the
+     * journal starts over. Spilling is turned off while a journal is open.
+     *
+     * @param path        The journal file.
+     * @param documentId  A hash identifying the document.
+     * @param contentHash The hash of the current document content.
+     * @return `true` if history was restored.
+     * @throws IOException if the journal can not be opened.
+     */
+    public boolean openJournal(File path, long documentId, long contentHash) throws IOException {
+        closeJournal();
+        setSpillFile(null);
+        clear();
+        dropped = 0;
+
+        EditableJournal file = new EditableJournal(path, documentId);
+        boolean restored = file.isValid(contentHash);
+        if (restored) {
+            file.restoreCheckpoint();
+            journalBelow = file.getCheckpointCount();
+            journalCursor = lastRecord = file.getCheckpointRecord();
+            groupId = Math.max(groupId, file.getCheckpointGroup());
+        } else {
+            file.reset();
+            file.checkpoint(contentHash, 0, -1, groupId);
+        }
+        journal = file;
+        return restored;
+    }
+
+    /**
+     * Marks the current state as saved: the document now hashes to `contentHash`, and reopening
+     * it with that content restores the history up to here.
+     *
+     * @param contentHash The hash of the document content.
+     */
+    public void checkpointJournal(long contentHash) {
+        if (journal == null) {
+            return;
+        }
+        if (top > 0 && !write(get(top - 1))) {
+            return;
+        }
+        lastEditTime = -1;
+        int record = (top > 0) ? get(top - 1).journalPosition : journalCursor;
+        journal.checkpoint(contentHash, journalBelow + top, record, groupId);
+    }
+
+    /**
+     * Closes the journal. History that was only in the journal is dropped.
+     */
+    public void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            EditableLog.e(TAG, "Error closing undo journal: " + e.getMessage());
+        }
+        journal = null;
+        journalBelow = 0;
+        journalCursor = lastRecord = -1;
+    }
+
+    /*
+     * Writes an action to the journal unless it is there already.
+     *
+     * @return false if the journal failed and was closed
+     */
+    private boolean write(Action action) {
+        if (action.journalPosition >= 0) {
+            return true;
+        }
+        if (action.data == null && action instanceof InsertAction) {
+            record(action);
+        }
+        try {
+            int type = (action instanceof InsertAction) ? EditableJournal.TYPE_INSERT
+                    : (action instanceof ReplaceAction) ? EditableJournal.TYPE_REPLACE
+                    : EditableJournal.TYPE_DELETE;
+            action.journalPosition = journal.append(lastRecord, action.group, type,
+                    action.start, action.end, action.data);
+            lastRecord = action.journalPosition;
+            return true;
+        } catch (IOException e) {
+            EditableLog.e(TAG, "Error writing undo journal: " + e.getMessage());
+            closeJournal();
+            return false;
+        }
+    }
+
+    /*
+     * Brings the newest group that is only in the journal back into memory, below the others.
+     */
+    private void loadJournalGroup() {
+        int group = journal.getGroup(journalCursor);
+        while (journalBelow > 0 && journal.getGroup(journalCursor) == group) {
+            int position = journalCursor;
+            int start = journal.getStart(position);
+            int end = journal.getEnd(position);
+            int type = journal.getType(position);
+            Action action;
+            if (type == EditableJournal.TYPE_REPLACE) {
+                action = new ReplaceAction(start, end, group, journal.getData(position));
+            } else {
+                action = (type == EditableJournal.TYPE_INSERT)
+                        ? new InsertAction(start, end, group)
+                        : new DeleteAction(start, end, group);
+                action.data = journal.getData(position);
+            }
+            action.journalPosition = position;
+            prepend(action);
+
+            journalCursor = journal.getPrevious(position);
+            journalBelow--;
+        }
+    }
+
+    private void prepend(Action action) {
+        if (size == stack.length) {
+            grow();
+        }
+        head = (head + stack.length - 1) % stack.length;
+        stack[head] = action;
+        size++;
+        top++;
+        spilled = 0;
+        usedBytes += action.getSize();
+    }
+
+    /**
+     * Sets the age after which the text of an action is spilled even while the history is within
+     * its byte budget. Only used with a spill file.
+     *
+     * @param nanos The age in nanoseconds, or 0 to spill by size only.
+     */
+    public void setSpillAge(long nanos) {
+        spillAge = Math.max(0, nanos);
+        evict();
+    }
+
+    /**
+     * Returns the estimated number of bytes held by the history.
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    private Action get(int index) {
+        return stack[(head + index) % stack.length];
+    }
+
     /**
      * Undo the previous insert/delete operation
      * 
@@ -29,18 +447,32 @@ class EditableStack {
      */
     public int onUndo() {
         if (isUndo()) {
-            Action lastUndo = stack.get(top - 1);
-            int group = lastUndo.group;
-            do {
-                Action action = stack.get(top - 1);
-                if (action.group != group) {
-                    break;
-                }
+            lastEditTime = -1;
+            if (top == 0) {
+                loadJournalGroup();
+            }
+            int group = get(top - 1).group;
+            int count = 1;
+            while (count < top && get(top - 1 - count).group == group) {
+                count++;
+            }
+            Action lastUndo = get(top - count);
 
-                lastUndo = action;
-                action.onUndo();
+            if (count > 1) {
+                if (!replay(top - 1, count, true)) {
+                    clear();
+                    return -1;
+                }
+                top -= count;
+            } else {
+                if (!load(lastUndo)) {
+                    clear();
+                    return -1;
+                }
+                lastUndo.onUndo();
                 top--;
-            } while(isUndo());
+            }
+            spilled = Math.min(spilled, top);
             return lastUndo.findUndoPosition();
         }
         return -1;
@@ -54,24 +486,95 @@ class EditableStack {
      */
     public int onRedo() {
         if (isRedo()) {
-            Action lastRedo = stack.get(top);
-            int group = lastRedo.group;
-            do {
-                Action action = stack.get(top);
-                if (action.group != group) {
-                    break;
-                }
+            lastEditTime = -1;
+            int group = get(top).group;
+            int count = 1;
+            while (top + count < size && get(top + count).group == group) {
+                count++;
+            }
+            Action lastRedo = get(top + count - 1);
 
-                lastRedo = action;
-                action.onRedo();
+            if (count > 1) {
+                if (!replay(top, count, false)) {
+                    clear();
+                    return -1;
+                }
+                top += count;
+            } else {
+                if (!load(lastRedo)) {
+                    clear();
+                    return -1;
+                }
+                lastRedo.onRedo();
                 top++;
-            } while(isRedo());
-
+            }
             return lastRedo.findRedoPosition();
         }
         return -1;
     }
 
+    /*
+     * Undoes or redoes `count` actions starting at index `first` (going down for an undo, up for
+     * a redo) as one edit of the Editable. The actions only ever touch the window between the
+     * lowest offset they reach and the shortest suffix they leave alone, so that window is copied
+     * into a scratch gap buffer, the actions are applied there one by one, and the result replaces
+     * the window in a single operation: one gap move, one line index update and one notification.
+     *
+     * @return false if the text of a spilled action could not be read back
+     */
+    private boolean replay(int first, int count, boolean undo) {
+        int step = undo ? -1 : 1;
+        for (int i = 0, index = first; i < count; i++, index += step) {
+            if (!load(get(index))) {
+                return false;
+            }
+        }
+        int[] bounds = findWindow(first, count, undo);
+        int windowStart = bounds[0];
+
+        try {
+            int windowEnd = editable.length() - bounds[1];
+            char[] chars = new char[windowEnd - windowStart];
+            editable.getChars(windowStart, windowEnd, chars, 0);
+            EditableGapBuffer window = new EditableGapBuffer(chars);
+
+            for (int i = 0, index = first; i < count; i++, index += step) {
+                Action action = get(index);
+                int start = action.start - windowStart;
+                if (action instanceof ReplaceAction) {
+                    ReplaceAction replace = (ReplaceAction) action;
+                    int end = (undo ? replace.replacedEnd : action.end) - windowStart;
+                    char[] source = new char[end - start];
+                    window.getChars(start, end, source, 0);
+                    char[] data = replace.rebuild(source, undo);
+                    window.delete(start, end);
+                    window.insert(start, data, 0, data.length);
+                } else if ((action instanceof InsertAction) == undo) {
+                    int end = action.end - windowStart;
+                    if (action.data == null) {
+                        char[] data = new char[end - start];
+                        window.getChars(start, end, data, 0);
+                        usedBytes -= action.getSize();
+                        action.data = new String(data);
+                        usedBytes += action.getSize();
+                    }
+                    window.delete(start, end);
+                } else {
+                    char[] data = action.data.toCharArray();
+                    window.insert(start, data, 0, data.length);
+                }
+            }
+
+            char[] replacement = new char[window.length()];
+            window.getChars(0, replacement.length, replacement, 0);
+            editable.replaceChars(windowStart, windowEnd, replacement);
+            return true;
+        } catch (IndexOutOfBoundsException e) {
+            EditableLog.e(TAG, "Error replaying undo group: " + e.getMessage());
+            return false;
+        }
+    }
+
     /** 
      * extract common parts of captureInsert and captureDelete
      *
@@ -81,25 +584,33 @@ class EditableStack {
     public void captureInsert(int start, int end, long time) {
         boolean mergeSuccess = false;
 
-        if (isUndo()) {
-            Action action = stack.get(top - 1);
+        trimStack();
+        if (top > 0) {
+            Action action = get(top - 1);
 
             if (action instanceof InsertAction
                 && action.merge(start, end, time)) {
                 mergeSuccess = true;
-            } else {
-                action.recordData();
+            } else if (action.data == null) {
+                record(action);
+            }
+            if (!mergeSuccess) {
+                checkpoint(action);
+                if (journal != null) {
+                    write(action);
+                }
             }
         }
 
         if (!mergeSuccess) {
-            push(new InsertAction(start, end, groupId));
+            push(new InsertAction(start, end, groupId), time);
 
             if (!isBatchEdit) {
                 groupId++;
             }
         }
         lastEditTime = time;
+        evict();
     }
 
     /**
@@ -109,56 +620,372 @@ class EditableStack {
     public void captureDelete(int start, int end, long time) {
         boolean mergeSuccess = false;
 
-        if (isUndo()) {
-            Action action = stack.get(top - 1);
+        trimStack();
+        if (top > 0) {
+            Action action = get(top - 1);
 
             if (action instanceof DeleteAction
                 && action.merge(start, end, time)) {
                 mergeSuccess = true;
-            } else {
-                action.recordData();
+            } else if (action.data == null) {
+                record(action);
+            }
+            if (!mergeSuccess) {
+                checkpoint(action);
+                if (journal != null) {
+                    write(action);
+                }
             }
         }
 
         if (!mergeSuccess) {
-            push(new DeleteAction(start, end, groupId));
+            Action action = new DeleteAction(start, end, groupId);
+            push(action, time);
+            record(action);
 
             if (!isBatchEdit) {
                 groupId++;
             }
         }
         lastEditTime = time;
+        evict();
     }
-    
-  // For Unlimited Undo Redo
-  /*private void push(Action action) {
-        trimStack();
-        top++;
-        stack.add(action);
-    }*/
-    
-    private void push(Action action) {
+
+    /**
+     * Records the replacement of many ranges as one undo unit of its own. Should be called before
+     * the ranges are replaced.
+     *
+     * @param text         The text before the replacement, read only over the ranges.
+     * @param starts       The starts of the ranges, in ascending order and not overlapping.
+     * @param ends         The ends of the ranges.
+     * @param replacements The text replacing each range.
+     * @param count        The number of ranges.
+     * @param time         The timestamp of the replacement.
+     */
+    public void captureReplace(CharSequence text, int[] starts, int[] ends, String[] replacements,
+            int count, long time) {
+        if (count == 0) {
+            return;
+        }
         trimStack();
-        if (stack.size() >= MAX_STACK_SIZE) {
-            stack.removeFirst(); // Remove the oldest action to maintain the limit
-            top--; // Adjust the top pointer accordingly
+        if (top > 0) {
+            Action action = get(top - 1);
+            if (action.data == null) {
+                record(action);
+            }
+            checkpoint(action);
+            if (journal != null) {
+                write(action);
+            }
+        }
+
+        String data = encodeReplace(text, starts, ends, replacements, count);
+        push(new ReplaceAction(starts[0], ends[count - 1], groupId, data), time);
+        if (!isBatchEdit) {
+            groupId++;
+        }
+        // Nothing merges into a replacement
+        lastEditTime = -1;
+        evict();
+    }
+
+    /*
+     * Encodes a replacement as the text of a ReplaceAction: the number of ranges, a flag per side
+     * telling if every range has the same text on that side, the offset of each range from the
+     * first one, then the old side and the new side. A shared side is its length and its text,
+     * any other side the length of each range followed by all their texts. Numbers take two chars.
+     */
+    private static String encodeReplace(CharSequence text, int[] starts, int[] ends, String[] replacements,
+            int count) {
+        int first = starts[0];
+        int oldLength = ends[0] - first;
+        int newLength = replacements[0].length();
+        boolean oldShared = true;
+        boolean newShared = true;
+        int oldTotal = 0;
+        int newTotal = 0;
+        for (int i = 0; i < count; ++i) {
+            int length = ends[i] - starts[i];
+            oldTotal += length;
+            newTotal += replacements[i].length();
+            if (oldShared && (length != oldLength || !regionMatches(text, first, starts[i], length))) {
+                oldShared = false;
+            }
+            if (newShared && !replacements[i].equals(replacements[0])) {
+                newShared = false;
+            }
         }
+
+        int oldSize = oldShared ? 2 + oldLength : count * 2 + oldTotal;
+        int newSize = newShared ? 2 + newLength : count * 2 + newTotal;
+        StringBuilder data = new StringBuilder(3 + count * 2 + oldSize + newSize);
+        appendInt(data, count);
+        data.append((char) ((oldShared ? REPLACE_OLD_SHARED : 0) | (newShared ? REPLACE_NEW_SHARED : 0)));
+        for (int i = 0; i < count; ++i) {
+            appendInt(data, starts[i] - first);
+        }
+
+        if (oldShared) {
+            appendInt(data, oldLength);
+            data.append(text, first, first + oldLength);
+        } else {
+            for (int i = 0; i < count; ++i) {
+                appendInt(data, ends[i] - starts[i]);
+            }
+            for (int i = 0; i < count; ++i) {
+                data.append(text, starts[i], ends[i]);
+            }
+        }
+        if (newShared) {
+            appendInt(data, newLength);
+            data.append(replacements[0]);
+        } else {
+            for (int i = 0; i < count; ++i) {
+                appendInt(data, replacements[i].length());
+            }
+            for (int i = 0; i < count; ++i) {
+                data.append(replacements[i]);
+            }
+        }
+        return data.toString();
+    }
+
+    private static boolean regionMatches(CharSequence text, int first, int other, int length) {
+        for (int i = 0; i < length; ++i) {
+            if (text.charAt(first + i) != text.charAt(other + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void appendInt(StringBuilder data, int value) {
+        data.append((char) (value >>> 16)).append((char) value);
+    }
+
+    private static int getInt(String data, int index) {
+        return (data.charAt(index) << 16) | data.charAt(index + 1);
+    }
+
+    /*
+     * Records the text of an action, keeping the byte count up to date.
+     */
+    private void record(Action action) {
+        usedBytes -= action.getSize();
+        action.recordData();
+        usedBytes += action.getSize();
+    }
+
+    private void push(Action action, long time) {
+        action.time = time;
+        if (size == stack.length) {
+            if (spillFile != null || get(0).group == action.group) {
+                grow(); // Spilling keeps all history, and a single group filling the stack stays whole
+            } else {
+                removeOldestGroup();
+            }
+        }
+        stack[(head + size) % stack.length] = action;
+        size++;
         top++;
-        stack.add(action);
+        usedBytes += action.getSize();
     }
-    
+
+    private void grow() {
+        Action[] temp = new Action[stack.length * 2];
+        for (int i = 0; i < size; i++) {
+            temp[i] = get(i);
+        }
+        stack = temp;
+        head = 0;
+    }
+
+    /*
+     * Evicts, or spills with a spill file, the oldest groups while the history is over its byte
+     * budget, always keeping the group of the newest action.
+     */
+    private void evict() {
+        if (spillFile != null) {
+            spill();
+            return;
+        }
+        while (usedBytes > byteBudget && top > 0 && get(0).group != get(size - 1).group) {
+            removeOldestGroup();
+        }
+    }
+
+    /*
+     * Moves the text of the oldest in-memory actions to the spill file while the history is over
+     * its byte budget or they are older than the spill age.
+     */
+    private void spill() {
+        if (size == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        int newestGroup = get(size - 1).group;
+        while (spilled < top) {
+            Action action = get(spilled);
+            boolean cold = usedBytes > byteBudget || (spillAge > 0 && now - action.time > spillAge);
+            if (action.group == newestGroup || !cold) {
+                break;
+            }
+            if (action.data != null) {
+                try {
+                    if (action.spillPosition < 0) {
+                        action.spillPosition = spillFile.write(action.data);
+                        spillReferences++;
+                    }
+                } catch (IOException e) {
+                    EditableLog.e(TAG, "Error spilling undo history: " + e.getMessage());
+                    setSpillFileFailed();
+                    evict();
+                    return;
+                }
+                usedBytes -= action.getSize();
+                action.data = null;
+                action.checkpoint = null;
+                usedBytes += action.getSize();
+            }
+            spilled++;
+        }
+    }
+
+    /*
+     * Brings the text of a spilled action back into memory.
+     *
+     * @return false if the text could not be read back
+     */
+    private boolean load(Action action) {
+        if (action.data != null || action.spillPosition < 0) {
+            return true;
+        }
+        try {
+            usedBytes -= action.getSize();
+            action.data = spillFile.read(action.spillPosition);
+            usedBytes += action.getSize();
+            return true;
+        } catch (IOException e) {
+            EditableLog.e(TAG, "Error reading spilled undo history: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /*
+     * Gives up on the spill file after an error. The spilled history can not be trusted anymore.
+     */
+    private void setSpillFileFailed() {
+        while (spilled > 0 && size > 0) {
+            removeOldestGroup();
+        }
+        closeSpillFile();
+    }
+
+    private void closeSpillFile() {
+        try {
+            spillFile.close();
+        } catch (IOException e) {
+            EditableLog.e(TAG, "Error closing spill file: " + e.getMessage());
+        }
+        spillFile = null;
+        spilled = 0;
+        spillReferences = 0;
+    }
+
+    /*
+     * Drops the whole history.
+     */
+    private void clear() {
+        // The revision stays where it is, with nothing left to undo or redo
+        dropped += journalBelow + top;
+        while (size > 0) {
+            removeLast();
+        }
+        top = 0;
+        head = 0;
+        spilled = 0;
+        lastEditTime = -1;
+        if (journal != null) {
+            journal.reset();
+        }
+        journalBelow = 0;
+        journalCursor = lastRecord = -1;
+    }
+
+    private void removeOldestGroup() {
+        int group = get(0).group;
+        while (size > 0 && get(0).group == group) {
+            if (journal != null && top > 0 && stack[head].journalPosition >= 0) {
+                // Still in the journal, it can be read back when undo gets there
+                journalCursor = stack[head].journalPosition;
+                journalBelow++;
+            } else if (top > 0) {
+                dropped++;
+            }
+            release(stack[head]);
+            stack[head] = null;
+            head = (head + 1) % stack.length;
+            size--;
+            top--;
+            spilled--;
+        }
+        if (top < 0) {
+            top = 0;
+        }
+        if (spilled < 0) {
+            spilled = 0;
+        }
+    }
+
     private void trimStack() {
-        while (stack.size() > top) {
-            stack.removeLast();
+        if (size == top) {
+            return;
+        }
+        while (size > top) {
+            removeLast();
+        }
+        spilled = Math.min(spilled, size);
+
+        if (journal != null) {
+            // Only the newest action may not be written yet
+            lastRecord = journalCursor;
+            for (int i = Math.max(0, top - 2); i < top; i++) {
+                if (get(i).journalPosition >= 0) {
+                    lastRecord = get(i).journalPosition;
+                }
+            }
+            journal.truncateAfter(lastRecord);
+        }
+    }
+
+    private void removeLast() {
+        int index = (head + size - 1) % stack.length;
+        release(stack[index]);
+        stack[index] = null;
+        size--;
+    }
+
+    /*
+     * Accounts for an action leaving the history. The spill file is emptied once no action
+     * refers to it anymore.
+     */
+    private void release(Action action) {
+        usedBytes -= action.getSize();
+        if (action.spillPosition >= 0 && --spillReferences == 0 && spillFile != null) {
+            try {
+                spillFile.clear();
+            } catch (IOException e) {
+                EditableLog.e(TAG, "Error clearing spill file: " + e.getMessage());
+            }
         }
     }
 
     public final boolean isUndo() {
-        return top > 0;
+        return top > 0 || journalBelow > 0;
     }
 
     public final boolean isRedo() {
-        return top < stack.size();
+        return top < size;
     }
 
     public boolean isBatchEdit() {
@@ -167,10 +994,12 @@ class EditableStack {
 
     public void beginBatchEdit() {
         isBatchEdit = true;
+        lastEditTime = -1;
     }
 
     public void endBatchEdit() {
         isBatchEdit = false;
+        lastEditTime = -1;
         groupId++;
     }
 
@@ -183,6 +1012,14 @@ class EditableStack {
         public String data;
         /* Group ID. Commands of the same group are undo/redo as a unit */
         public int group;
+        /* Timestamp of the capture, or of the last merge */
+        public long time;
+        /* Position of the text in the spill file, or -1 if it was never spilled */
+        public long spillPosition = -1;
+        /* Position of the record in the journal, or -1 if it is not written yet */
+        public int journalPosition = -1;
+        /* Text right after this action, or null if it is not a checkpoint */
+        public EditableSnapshot checkpoint;
         /* 750ms in nanoseconds */
         public final long MERGE_TIME = 1000000000; 
 
@@ -193,6 +1030,16 @@ class EditableStack {
         public abstract int findUndoPosition();
         public abstract int findRedoPosition();
 
+        /* Estimated number of bytes held by this action */
+        public long getSize() {
+            long size = ACTION_OVERHEAD + (data != null ? (long) data.length() * Character.BYTES : 0);
+            if (checkpoint != null) {
+                size += (checkpoint instanceof EditableArraySnapshot)
+                        ? (long) checkpoint.length() * Character.BYTES : CHECKPOINT_OVERHEAD;
+            }
+            return size;
+        }
+
         /**
          * Attempts to merge in an edit. This will only be successful if the new
          * edit is continuous. See {@link UndoStack} for the requirements
@@ -220,16 +1067,19 @@ class EditableStack {
             this.group = group;
         }
 
+        /*
+         * Typing right after this insertion extends it, as long as its text has not been recorded
+         */
         @Override
         public boolean merge(int start, int end, long time) {
-            if (lastEditTime < 0) {
+            if (lastEditTime < 0 || isBatchEdit || data != null) {
                 return false;
             }
 
             if ((time - lastEditTime) < MERGE_TIME
-                && start == end) {
-                end += end - start;
-                trimStack();
+                && start == this.end) {
+                this.end = end;
+                this.time = time;
                 return true;
             }
             return false;
@@ -244,12 +1094,10 @@ class EditableStack {
         @Override
         public void onUndo() {
             if (data == null) {
-                recordData();
-                editable.shiftEditableStart(-(end - start));
-            } else {
-                //dummy timestamp of 0
-                editable.delete(start, end, false, 0);
+                record(this);
             }
+            //dummy timestamp of 0
+            editable.delete(start, end, false, 0);
         }
 
         @Override
@@ -281,36 +1129,40 @@ class EditableStack {
             this.group = group;
         }
 
+        /*
+         * Backspacing right before this deletion extends it, prepending the deleted text
+         */
         @Override
         public boolean merge(int start, int end, long time) {
-            if (lastEditTime < 0) {
+            if (lastEditTime < 0 || isBatchEdit || data == null) {
                 return false;
             }
 
             if ((time - lastEditTime) < MERGE_TIME
-                && end == start) {
-                start = start;
-                trimStack();
+                && end == this.start) {
+                usedBytes -= getSize();
+                data = editable.substring(start, end) + data;
+                usedBytes += getSize();
+                this.start = start;
+                this.time = time;
                 return true;
             }
             return false;
         }
 
+        /**
+         * Must be called before the deletion is done, while the text is still there.
+         */
         @Override
         public void recordData() {
             //TODO handle memory allocation failure
-            data = new String(editable.editableSubSequence(end - start));
+            data = editable.substring(start, end);
         }
 
         @Override
         public void onUndo() {
-            if (data == null) {
-                recordData();
-                editable.shiftEditableStart(end - start);
-            } else {
-                //dummy timestamp of 0
-                editable.insert(start, data, false, 0);
-            }
+            //dummy timestamp of 0
+            editable.insert(start, data, false, 0);
         }
 
         @Override
@@ -329,4 +1181,148 @@ class EditableStack {
             return end;
         }
     }
-}
\ No newline at end of file
+
+
+    private class ReplaceAction extends Action {
+        /* End of the edit once its ranges are replaced */
+        public int replacedEnd;
+
+        /**
+         * Corresponds to the replacement of the ranges encoded in data, the first starting at
+         * start and the last ending at end.
+         */
+        public ReplaceAction(int start, int end, int group, String data) {
+            this.start = start;
+            this.end = end;
+            this.group = group;
+            this.data = data;
+
+            int count = getInt(data, 0);
+            int flags = data.charAt(2);
+            int[] oldLengths = new int[count];
+            int[] newLengths = new int[count];
+            int position = readSide(3 + count * 2, (flags & REPLACE_OLD_SHARED) != 0, oldLengths);
+            readSide(position, (flags & REPLACE_NEW_SHARED) != 0, newLengths);
+            int delta = 0;
+            for (int i = 0; i < count; ++i) {
+                delta += newLengths[i] - oldLengths[i];
+            }
+            replacedEnd = end + delta;
+        }
+
+        /*
+         * Reads the length of the text of each range on one side of the encoding.
+         *
+         * @return the position of the side after it
+         */
+        private int readSide(int position, boolean shared, int[] lengths) {
+            if (shared) {
+                int length = getInt(data, position);
+                Arrays.fill(lengths, length);
+                return position + 2 + length;
+            }
+            int total = 0;
+            for (int i = 0; i < lengths.length; ++i) {
+                lengths[i] = getInt(data, position + i * 2);
+                total += lengths[i];
+            }
+            return position + lengths.length * 2 + total;
+        }
+
+        /*
+         * Turns the text of the edit before the replacement into the text after it, or back for an
+         * undo, in one pass over both.
+         */
+        char[] rebuild(char[] source, boolean undo) {
+            int count = getInt(data, 0);
+            int flags = data.charAt(2);
+            boolean oldShared = (flags & REPLACE_OLD_SHARED) != 0;
+            boolean newShared = (flags & REPLACE_NEW_SHARED) != 0;
+            int[] oldLengths = new int[count];
+            int[] newLengths = new int[count];
+            int oldSide = 3 + count * 2;
+            int newSide = readSide(oldSide, oldShared, oldLengths);
+            readSide(newSide, newShared, newLengths);
+
+            int[] fromLengths = undo ? newLengths : oldLengths;
+            int[] toLengths = undo ? oldLengths : newLengths;
+            boolean toShared = undo ? oldShared : newShared;
+            int text = undo ? oldSide : newSide;
+            text += toShared ? 2 : count * 2;
+
+            char[] result = new char[(undo ? end : replacedEnd) - start];
+            int read = 0;
+            int written = 0;
+            int delta = 0;
+            for (int i = 0; i < count; ++i) {
+                int offset = getInt(data, 3 + i * 2) + (undo ? delta : 0);
+                System.arraycopy(source, read, result, written, offset - read);
+                written += offset - read;
+                data.getChars(text, text + toLengths[i], result, written);
+                written += toLengths[i];
+                if (!toShared) {
+                    text += toLengths[i];
+                }
+                read = offset + fromLengths[i];
+                delta += newLengths[i] - oldLengths[i];
+            }
+            System.arraycopy(source, read, result, written, source.length - read);
+            return result;
+        }
+
+        private void apply(boolean undo) {
+            int sourceEnd = undo ? replacedEnd : end;
+            try {
+                char[] source = new char[sourceEnd - start];
+                editable.getChars(start, sourceEnd, source, 0);
+                editable.replaceChars(start, sourceEnd, rebuild(source, undo));
+            } catch (IndexOutOfBoundsException e) {
+                EditableLog.e(TAG, "Error applying replacement: " + e.getMessage());
+            }
+        }
+
+        /*
+         * Replacements never merge
+         */
+        @Override
+        public boolean merge(int start, int end, long time) {
+            return false;
+        }
+
+        /**
+         * The text is encoded when the replacement is captured, it only has to be read back if it
+         * was spilled.
+         */
+        @Override
+        public void recordData() {
+            if (data != null || spillPosition < 0 || spillFile == null) {
+                return;
+            }
+            try {
+                data = spillFile.read(spillPosition);
+            } catch (IOException e) {
+                EditableLog.e(TAG, "Error reading spilled replacement: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onUndo() {
+            apply(true);
+        }
+
+        @Override
+        public void onRedo() {
+            apply(false);
+        }
+
+        @Override
+        public int findRedoPosition() {
+            return replacedEnd;
+        }
+
+        @Override
+        public int findUndoPosition() {
+            return start;
+        }
+    }
+}
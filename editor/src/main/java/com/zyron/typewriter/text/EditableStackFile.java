@@ -0,0 +1,126 @@
+package com.zyron.typewriter.text;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only file holding the text of undo actions that went cold. Each entry is the text as
+ * UTF-16 code units, deflated, preceded by its character count and compressed length. Characters
+ * are written unit by unit rather than through a charset, so text cut in the middle of a surrogate
+ * pair survives the round trip.
+ */
+final class EditableStackFile implements Closeable {
+
+    private final RandomAccessFile file;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private byte[] buffer = new byte[8192];
+
+    /**
+     * Opens the specified file, discarding anything it held.
+     *
+     * @param path The file to write to.
+     * @throws IOException if the file can not be opened.
+     */
+    EditableStackFile(File path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+    }
+
+    /**
+     * Appends a text to the file.
+     *
+     * @param data The text to store.
+     * @return The position of the entry, to be passed to {@link #read(long)}.
+     * @throws IOException if the entry can not be written.
+     */
+    long write(String data) throws IOException {
+        int length = data.length();
+        byte[] bytes = new byte[length * 2];
+        for (int i = 0; i < length; ++i) {
+            char c = data.charAt(i);
+            bytes[2 * i] = (byte) (c >> 8);
+            bytes[2 * i + 1] = (byte) c;
+        }
+
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        int compressed = 0;
+        while (!deflater.finished()) {
+            if (compressed == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            compressed += deflater.deflate(buffer, compressed, buffer.length - compressed);
+        }
+
+        long position = file.length();
+        file.seek(position);
+        file.writeInt(length);
+        file.writeInt(compressed);
+        file.write(buffer, 0, compressed);
+        return position;
+    }
+
+    /**
+     * Reads back the text of an entry.
+     *
+     * @param position The position returned by {@link #write(String)}.
+     * @return The stored text.
+     * @throws IOException if the entry can not be read or is corrupt.
+     */
+    String read(long position) throws IOException {
+        file.seek(position);
+        int length = file.readInt();
+        int compressed = file.readInt();
+        byte[] input = new byte[compressed];
+        file.readFully(input);
+
+        byte[] bytes = new byte[length * 2];
+        inflater.reset();
+        inflater.setInput(input);
+        try {
+            int inflated = 0;
+            while (inflated < bytes.length && !inflater.finished()) {
+                int count = inflater.inflate(bytes, inflated, bytes.length - inflated);
+                if (count == 0 && inflater.needsInput()) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != bytes.length) {
+                throw new IOException("truncated entry at " + position);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt entry at " + position, e);
+        }
+
+        char[] chars = new char[length];
+        for (int i = 0; i < length; ++i) {
+            chars[i] = (char) (((bytes[2 * i] & 0xFF) << 8) | (bytes[2 * i + 1] & 0xFF));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Drops every entry.
+     *
+     * @throws IOException if the file can not be truncated.
+     */
+    void clear() throws IOException {
+        file.setLength(0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        inflater.end();
+        file.close();
+    }
+}
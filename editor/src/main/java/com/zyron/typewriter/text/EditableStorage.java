@@ -0,0 +1,59 @@
+package com.zyron.typewriter.text;
+
+/**
+ * Character storage behind an {@link Editable}.
+ *
+ * Implementations only hold characters. Line bookkeeping, selection, undo/redo and listener
+ * notification stay in {@link Editable}, so a storage can be swapped without changing any caller
+ * of the Editable API. Storages are not thread safe on their own; {@link Editable} serializes
+ * access to them.
+ */
+public interface EditableStorage {
+
+    /**
+     * Returns the number of characters held by this storage.
+     *
+     * @return The character count.
+     */
+    int length();
+
+    /**
+     * Gets the character at the specified offset.
+     *
+     * @param index The offset of the character to retrieve.
+     * @return The character at the offset.
+     * @throws IndexOutOfBoundsException if the offset is out of bounds.
+     */
+    char charAt(int index);
+
+    /**
+     * Copies the characters in the range [srcBegin, srcEnd) into `dst`, starting at `dstBegin`.
+     *
+     * @param srcBegin The starting offset of the range to copy (inclusive).
+     * @param srcEnd   The ending offset of the range to copy (exclusive).
+     * @param dst      The destination array.
+     * @param dstBegin The index in `dst` the first character is written to.
+     * @throws IndexOutOfBoundsException if the range is out of bounds.
+     */
+    void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin);
+
+    /**
+     * Inserts `count` characters taken from `chars` at the given offset.
+     *
+     * @param offset The offset at which to insert the characters.
+     * @param chars  The array holding the characters to insert.
+     * @param start  The index of the first character to insert in `chars`.
+     * @param count  The number of characters to insert.
+     * @throws IndexOutOfBoundsException if the offset is out of bounds.
+     */
+    void insert(int offset, char[] chars, int start, int count);
+
+    /**
+     * Deletes the characters in the specified range.
+     *
+     * @param start The starting offset of the range to delete (inclusive).
+     * @param end   The ending offset of the range to delete (exclusive).
+     * @throws IndexOutOfBoundsException if the range is out of bounds.
+     */
+    void delete(int start, int end);
+}
@@ -0,0 +1,166 @@
+package com.zyron.typewriter.text;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A set of edits collected against one version of an {@link Editable} and applied together by
+ * {@link #commit()}. The edits are sorted and applied in a single pass from the end of the text to
+ * its start, as one undo unit, with one version change, one line index pass and one notification
+ * covering the span from the first edit to the last, however many edits there are.
+ *
+ * Offsets of every edit refer to the text at {@link #getBaseVersion()}, and edits must not
+ * overlap. If the text changed before the commit, the edits are moved over those changes like
+ * those passed to {@link Editable#applyEdits}.
+ */
+public final class EditableTransaction {
+
+    private final Editable editable;
+    private final long baseVersion;
+    private final List<EditableEdit> edits = new ArrayList<>();
+
+    /* The applied edits in ascending order, in the coordinates of the text just before the commit */
+    private int[] appliedStarts;
+    private int[] appliedEnds;
+    private int[] appliedLengths;
+    /* Sum of the length changes of the applied edits before each one */
+    private int[] appliedDeltas;
+
+    EditableTransaction(Editable editable, long baseVersion) {
+        this.editable = editable;
+        this.baseVersion = baseVersion;
+    }
+
+    /**
+     * Returns the version of the Editable the offsets of the edits refer to.
+     */
+    public long getBaseVersion() {
+        return baseVersion;
+    }
+
+    /**
+     * Adds an edit to the transaction.
+     *
+     * @param edit The edit to add.
+     * @return This transaction.
+     * @throws IllegalStateException if the transaction was committed.
+     */
+    public EditableTransaction add(EditableEdit edit) {
+        if (isCommitted()) {
+            throw new IllegalStateException("transaction already committed");
+        }
+        edits.add(edit);
+        return this;
+    }
+
+    /**
+     * Adds an insertion of text at the specified offset.
+     *
+     * @return This transaction.
+     */
+    public EditableTransaction insert(int offset, CharSequence text) {
+        return add(new EditableEdit(offset, offset, text));
+    }
+
+    /**
+     * Adds a deletion of the range [start, end).
+     *
+     * @return This transaction.
+     */
+    public EditableTransaction delete(int start, int end) {
+        return add(new EditableEdit(start, end, null));
+    }
+
+    /**
+     * Adds a replacement of the range [start, end) with text.
+     *
+     * @return This transaction.
+     */
+    public EditableTransaction replace(int start, int end, CharSequence text) {
+        return add(new EditableEdit(start, end, text));
+    }
+
+    /**
+     * Returns the number of edits added so far.
+     */
+    public int size() {
+        return edits.size();
+    }
+
+    /**
+     * Applies every edit of the transaction to the Editable, or none of them.
+     *
+     * @return `true` if the edits were applied, `false` if they overlap, are out of bounds, or
+     * could not be moved over changes made since the base version.
+     * @throws IllegalStateException if the transaction was committed already.
+     */
+    public boolean commit() {
+        if (isCommitted()) {
+            throw new IllegalStateException("transaction already committed");
+        }
+        return editable.commit(this);
+    }
+
+    /**
+     * Checks if the transaction was committed successfully.
+     */
+    public boolean isCommitted() {
+        return appliedStarts != null;
+    }
+
+    /**
+     * Maps an offset of the text just before the commit to the text after it, as carets and
+     * selections are moved. Offsets inside an edit, or at its start, move to the end of its
+     * replacement; the others keep their place relative to the text around them.
+     *
+     * @param offset The offset before the commit.
+     * @return The offset after the commit, or `offset` itself if the transaction was not
+     * committed.
+     */
+    public int mapOffset(int offset) {
+        if (!isCommitted()) {
+            return offset;
+        }
+        // Last edit starting at or before the offset
+        int low = 0;
+        int high = appliedStarts.length - 1;
+        int index = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (appliedStarts[mid] <= offset) {
+                index = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (index < 0) {
+            return offset;
+        }
+        int start = appliedStarts[index] + appliedDeltas[index];
+        if (offset <= appliedEnds[index]) {
+            return start + appliedLengths[index];
+        }
+        return start + appliedLengths[index] + offset - appliedEnds[index];
+    }
+
+    List<EditableEdit> getEdits() {
+        return edits;
+    }
+
+    /**
+     * Remembers the edits as they were applied, sorted and with the lengths actually inserted.
+     */
+    void setApplied(int[] starts, int[] ends, int[] lengths) {
+        int[] deltas = new int[starts.length];
+        int delta = 0;
+        for (int i = 0; i < starts.length; ++i) {
+            deltas[i] = delta;
+            delta += lengths[i] - (ends[i] - starts[i]);
+        }
+        appliedEnds = ends;
+        appliedLengths = lengths;
+        appliedDeltas = deltas;
+        appliedStarts = starts;
+    }
+}
@@ -0,0 +1,370 @@
+package com.zyron.typewriter.text;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Optional trigram index over an {@link Editable}, which lets an {@link EditableFinder} skip the
+ * chunks of a very large text that can not hold a match. The text is split into chunks of about
+ * {@link #CHUNK_SIZE} characters, and every chunk gets a bitmap of the case-folded trigrams
+ * starting in it, hashed to {@link #BITMAP_BITS} buckets. A query can only match in a chunk whose
+ * bitmaps hold all of its trigrams, so the finder searches those chunks and nothing else. Hash
+ * collisions only ever add candidates; the finder verifies every match.
+ *
+ * The index is built chunk by chunk by a background job of an {@link EditableScheduler} and
+ * follows the edits of the text: chunk bounds shift with the change, and the chunks a change
+ * touched lose their bitmap until the job indexes them again. A chunk without a bitmap, because
+ * it is stale or because the memory limit was reached, is always a candidate, so the index never
+ * hides a match and without one the finder scans linearly.
+ *
+ * Chunk bounds and bitmaps are guarded by the index's monitor. They move only under the Editable
+ * lock as well, so a finder narrowing its search inside the Editable lock sees them match the
+ * text; a bitmap built outside both is installed only if its chunk was not touched meanwhile.
+ */
+public final class EditableTrigramIndex {
+
+    /** The number of characters per chunk. */
+    public static final int CHUNK_SIZE = 64 * 1024;
+    /** The number of buckets trigrams are hashed to in the bitmap of a chunk. */
+    public static final int BITMAP_BITS = 1 << 15;
+    /** The default number of bytes the bitmaps may take. */
+    public static final long DEFAULT_MEMORY_LIMIT = 16L << 20;
+
+    private static final int BITMAP_SHIFT = 15;
+    private static final int BITMAP_BYTES = BITMAP_BITS / Byte.SIZE;
+    /* Quiet time after edits before the chunks they touched are indexed again */
+    private static final long REINDEX_DELAY = 250;
+
+    private final Editable editable;
+    private final EditableScheduler scheduler;
+    private final String jobName;
+
+    private int[] starts = new int[16];
+    private long[][] bitmaps = new long[16][];
+    /* Changed whenever the text of a chunk changes, so a stale bitmap is never installed */
+    private int[] stamps = new int[16];
+    private int chunkCount;
+    private int nextStamp;
+    private int length;
+    private long version;
+    private long memoryLimit = DEFAULT_MEMORY_LIMIT;
+    private int indexedCount;
+    private boolean closed;
+
+    private final EditableChangeListener changeListener = new EditableChangeListener() {
+        @Override
+        public void onChanged(List<EditableChange> changes) {
+            onEdited(changes);
+        }
+    };
+
+    /**
+     * Constructs an index and starts building it. It follows the edits of the text until
+     * {@link #close()}.
+     *
+     * @param editable  The text to index.
+     * @param scheduler The scheduler to build the index on.
+     */
+    public EditableTrigramIndex(Editable editable, EditableScheduler scheduler) {
+        this.editable = editable;
+        this.scheduler = scheduler;
+        this.jobName = "trigram@" + Integer.toHexString(System.identityHashCode(this));
+        synchronized (editable) {
+            synchronized (this) {
+                length = editable.length();
+                version = editable.getVersion();
+                for (int start = 0; start < length || chunkCount == 0; start += CHUNK_SIZE) {
+                    insertChunk(chunkCount, start);
+                }
+            }
+            editable.getChangeBus().subscribe(changeListener, EditableChangeBus.DIRECT, EditableChangeBus.COALESCE_NONE);
+        }
+        scheduler.submit(new IndexJob());
+    }
+
+    /**
+     * Sets the number of bytes the bitmaps may take. Chunks past the limit are not indexed and
+     * are always searched.
+     *
+     * @param bytes The limit in bytes.
+     */
+    public void setMemoryLimit(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("memory limit can not be negative");
+        }
+        synchronized (this) {
+            memoryLimit = bytes;
+            // Drop the bitmaps of the last chunks until the index fits again
+            for (int i = chunkCount - 1; i >= 0 && getMemoryUsed() > memoryLimit; --i) {
+                if (bitmaps[i] != null) {
+                    bitmaps[i] = null;
+                    indexedCount--;
+                }
+            }
+        }
+        scheduler.submit(new IndexJob());
+    }
+
+    /**
+     * Returns the number of bytes the bitmaps take.
+     */
+    public synchronized long getMemoryUsed() {
+        return (long) indexedCount * BITMAP_BYTES;
+    }
+
+    /**
+     * Returns the number of chunks the text is split into.
+     */
+    public synchronized int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Returns the number of chunks with an up-to-date bitmap.
+     */
+    public synchronized int getIndexedCount() {
+        return indexedCount;
+    }
+
+    /**
+     * Checks if every chunk has an up-to-date bitmap.
+     */
+    public synchronized boolean isComplete() {
+        return indexedCount == chunkCount;
+    }
+
+    /**
+     * Stops following the edits of the text and drops the bitmaps.
+     */
+    public void close() {
+        editable.getChangeBus().unsubscribe(changeListener);
+        scheduler.cancel(jobName);
+        synchronized (this) {
+            closed = true;
+            Arrays.fill(bitmaps, 0, chunkCount, null);
+            indexedCount = 0;
+        }
+    }
+
+    /**
+     * Adds to a set the ranges of match starts that may hold a query: the chunks whose bitmaps,
+     * together with those of the chunks a match starting there can reach into, hold every trigram
+     * of the query. Called with the Editable locked.
+     *
+     * @param pattern    The query.
+     * @param candidates Receives the ranges.
+     * @return `false` if the query is too short to narrow the search, in which case nothing was
+     * added.
+     */
+    synchronized boolean narrow(char[] pattern, EditableRangeSet candidates) {
+        int trigramCount = pattern.length - 2;
+        if (trigramCount <= 0 || closed) {
+            return false;
+        }
+        int[] buckets = new int[trigramCount];
+        for (int i = 0; i < trigramCount; ++i) {
+            buckets[i] = hash(fold(pattern[i]), fold(pattern[i + 1]), fold(pattern[i + 2]));
+        }
+
+        for (int i = 0; i < chunkCount; ++i) {
+            int end = getEnd(i);
+            // The trigrams of a match starting in this chunk start before reach
+            int reach = end + pattern.length - 2;
+            boolean candidate = true;
+            for (int j = 0; j < trigramCount && candidate; ++j) {
+                candidate = false;
+                for (int k = i; k < chunkCount && (k == i || starts[k] < reach); ++k) {
+                    long[] bitmap = bitmaps[k];
+                    if (bitmap == null || (bitmap[buckets[j] >>> 6] & (1L << buckets[j])) != 0) {
+                        candidate = true;
+                        break;
+                    }
+                }
+            }
+            if (candidate) {
+                candidates.add(starts[i], end);
+            }
+        }
+        return true;
+    }
+
+    private int getEnd(int index) {
+        return (index + 1 < chunkCount) ? starts[index + 1] : length;
+    }
+
+    /*
+     * Shifts the chunk bounds over the changes and drops the bitmaps of the chunks whose trigrams
+     * they touched, from inside the edit.
+     */
+    private void onEdited(List<EditableChange> changes) {
+        synchronized (editable) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                for (EditableChange change : changes) {
+                    version = change.getVersion();
+                    map(change.getOffset(), change.getRemoved(), change.getInserted());
+                }
+            }
+        }
+        scheduler.submit(new IndexJob(), REINDEX_DELAY);
+    }
+
+    private void map(int offset, int removed, int inserted) {
+        int removedEnd = offset + removed;
+        int delta = inserted - removed;
+        for (int i = 1; i < chunkCount; ++i) {
+            if (starts[i] >= removedEnd) {
+                starts[i] += delta;
+            } else if (starts[i] > offset) {
+                starts[i] = offset;
+            }
+        }
+        length += delta;
+
+        // Drop the chunks the change emptied, but always keep the first
+        int kept = 1;
+        for (int i = 1; i < chunkCount; ++i) {
+            if (starts[i] == starts[kept - 1] || starts[i] >= length) {
+                if (bitmaps[i] != null) {
+                    indexedCount--;
+                }
+                continue;
+            }
+            starts[kept] = starts[i];
+            bitmaps[kept] = bitmaps[i];
+            stamps[kept] = stamps[i];
+            kept++;
+        }
+        Arrays.fill(bitmaps, kept, chunkCount, null);
+        chunkCount = kept;
+
+        // Trigrams starting up to two characters before the change read into it, and the chunk
+        // at the end of the change may have taken over text from a chunk it emptied
+        int dirtyStart = offset - 2;
+        int dirtyEnd = offset + inserted;
+        for (int i = 0; i < chunkCount && starts[i] <= dirtyEnd; ++i) {
+            if (getEnd(i) > dirtyStart) {
+                invalidate(i);
+            }
+        }
+
+        // Split chunks that grew too large, so that one keystroke never re-indexes much
+        for (int i = 0; i < chunkCount; ++i) {
+            if (getEnd(i) - starts[i] > CHUNK_SIZE * 2) {
+                insertChunk(i + 1, starts[i] + CHUNK_SIZE);
+                invalidate(i);
+            }
+        }
+    }
+
+    private void invalidate(int index) {
+        if (bitmaps[index] != null) {
+            bitmaps[index] = null;
+            indexedCount--;
+        }
+        stamps[index] = ++nextStamp;
+    }
+
+    private void insertChunk(int index, int start) {
+        if (chunkCount == starts.length) {
+            starts = Arrays.copyOf(starts, chunkCount * 2);
+            bitmaps = Arrays.copyOf(bitmaps, chunkCount * 2);
+            stamps = Arrays.copyOf(stamps, chunkCount * 2);
+        }
+        System.arraycopy(starts, index, starts, index + 1, chunkCount - index);
+        System.arraycopy(bitmaps, index, bitmaps, index + 1, chunkCount - index);
+        System.arraycopy(stamps, index, stamps, index + 1, chunkCount - index);
+        starts[index] = start;
+        bitmaps[index] = null;
+        stamps[index] = ++nextStamp;
+        chunkCount++;
+    }
+
+    /*
+     * Indexes the chunks without a bitmap one at a time. The text is locked only to copy a chunk
+     * out; its bitmap is built unlocked and installed only if the chunk was not edited meanwhile.
+     */
+    private final class IndexJob extends EditableJob {
+
+        private char[] buffer = new char[0];
+
+        IndexJob() {
+            super(jobName, PRIORITY_BACKGROUND, false);
+        }
+
+        @Override
+        protected boolean isSnapshotNeeded() {
+            return false;
+        }
+
+        @Override
+        protected void run(EditableSnapshot snapshot) {
+            while (!isCancelled()) {
+                int stamp;
+                int size;
+                synchronized (editable) {
+                    synchronized (EditableTrigramIndex.this) {
+                        // Behind a change still being delivered, whose delivery submits again
+                        if (closed || version != editable.getVersion()
+                                || getMemoryUsed() + BITMAP_BYTES > memoryLimit) {
+                            return;
+                        }
+                        int index = 0;
+                        while (index < chunkCount && bitmaps[index] != null) {
+                            index++;
+                        }
+                        if (index == chunkCount) {
+                            return;
+                        }
+                        stamp = stamps[index];
+                        int start = starts[index];
+                        size = Math.min(length, getEnd(index) + 2) - start;
+                        if (buffer.length < size) {
+                            buffer = new char[size];
+                        }
+                        editable.getChars(start, start + size, buffer, 0);
+                    }
+                }
+
+                long[] bitmap = build(buffer, size);
+                synchronized (EditableTrigramIndex.this) {
+                    for (int i = 0; i < chunkCount; ++i) {
+                        if (stamps[i] == stamp && bitmaps[i] == null && !closed) {
+                            bitmaps[i] = bitmap;
+                            indexedCount++;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static long[] build(char[] text, int size) {
+        long[] bitmap = new long[BITMAP_BITS / Long.SIZE];
+        if (size < 3) {
+            return bitmap;
+        }
+        char a = fold(text[0]);
+        char b = fold(text[1]);
+        for (int i = 2; i < size; ++i) {
+            char c = fold(text[i]);
+            int bucket = hash(a, b, c);
+            bitmap[bucket >>> 6] |= 1L << bucket;
+            a = b;
+            b = c;
+        }
+        return bitmap;
+    }
+
+    private static int hash(char a, char b, char c) {
+        long key = ((long) a << 32) | ((long) b << 16) | c;
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> (Long.SIZE - BITMAP_SHIFT));
+    }
+
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+}
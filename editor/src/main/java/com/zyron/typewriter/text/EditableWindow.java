@@ -0,0 +1,52 @@
+package com.zyron.typewriter.text;
+
+/**
+ * A view of a range of an {@link Editable}, handed to an {@link EditableListener} in place of a
+ * copy of the changed text. Nothing is copied unless the listener reads it, and {@link #toString()}
+ * copies only the range. The view reads the live text, so it is only valid during the callback.
+ */
+final class EditableWindow implements CharSequence {
+
+    private final Editable editable;
+    private final int start;
+    private final int end;
+
+    /**
+     * Constructs a view of the range [start, end) of the specified text.
+     *
+     * @param editable The text to view.
+     * @param start    The starting offset of the range (inclusive).
+     * @param end      The ending offset of the range (exclusive).
+     */
+    EditableWindow(Editable editable, int start, int end) {
+        this.editable = editable;
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    public int length() {
+        return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= end - start) {
+            throw new IndexOutOfBoundsException("index " + index + " out of bounds");
+        }
+        return editable.charAt(start + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        if (from < 0 || to > end - start || from > to) {
+            throw new IndexOutOfBoundsException("range [" + from + ", " + to + ") out of bounds");
+        }
+        return new EditableWindow(editable, start + from, start + to);
+    }
+
+    @Override
+    public String toString() {
+        return editable.substring(start, end);
+    }
+}
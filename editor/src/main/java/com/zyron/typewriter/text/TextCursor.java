@@ -0,0 +1,148 @@
+package com.zyron.typewriter.text;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A forward and backward iterator over the characters of an {@link Editable}. Characters are
+ * copied out of the storage in batches with {@link Editable#getChars}, so the Editable is locked
+ * once per batch instead of once per character, and each step is a plain array read.
+ *
+ * A cursor reads the text as it was when its current batch was loaded. After the Editable changes,
+ * call {@link #setPosition(int)} to drop the batch and pick up the new text.
+ */
+public final class TextCursor {
+
+    /** The number of characters copied per batch. */
+    public static final int BATCH_SIZE = 1024;
+
+    private final Editable editable;
+    private final char[] buffer;
+
+    /* The document range [bufferStart, bufferEnd) currently held in buffer */
+    private int bufferStart;
+    private int bufferEnd;
+
+    private int position;
+    private int length;
+
+    /**
+     * Constructs a cursor over the specified Editable, placed before the character at `position`.
+     *
+     * @param editable The Editable to read.
+     * @param position The starting offset, between 0 and the length of the text.
+     * @throws IndexOutOfBoundsException if the position is out of bounds.
+     */
+    public TextCursor(Editable editable, int position) {
+        if (editable == null) {
+            throw new IllegalArgumentException("Editable cannot be null");
+        }
+        this.editable = editable;
+        this.buffer = new char[BATCH_SIZE];
+        setPosition(position);
+    }
+
+    /**
+     * Moves the cursor before the character at the specified offset and discards the loaded batch,
+     * so the text is read again from the Editable.
+     *
+     * @param position The new offset, between 0 and the length of the text.
+     * @throws IndexOutOfBoundsException if the position is out of bounds.
+     */
+    public void setPosition(int position) {
+        length = editable.length();
+        if (position < 0 || position > length) {
+            throw new IndexOutOfBoundsException("position " + position + " out of bounds");
+        }
+        this.position = position;
+        bufferStart = bufferEnd = 0;
+    }
+
+    /**
+     * Returns the offset of the character {@link #next()} would return.
+     *
+     * @return The current offset.
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Checks if there is a character after the cursor.
+     *
+     * @return `true` if {@link #next()} can be called.
+     */
+    public boolean hasNext() {
+        return position < length;
+    }
+
+    /**
+     * Checks if there is a character before the cursor.
+     *
+     * @return `true` if {@link #previous()} can be called.
+     */
+    public boolean hasPrevious() {
+        return position > 0;
+    }
+
+    /**
+     * Returns the character after the cursor and moves the cursor past it.
+     *
+     * @return The next character.
+     * @throws NoSuchElementException if the cursor is at the end of the text.
+     */
+    public char next() {
+        if (position >= length) {
+            throw new NoSuchElementException();
+        }
+        if (position < bufferStart || position >= bufferEnd) {
+            load(position, Math.min(length, position + BATCH_SIZE));
+        }
+        return buffer[position++ - bufferStart];
+    }
+
+    /**
+     * Returns the character before the cursor and moves the cursor back over it.
+     *
+     * @return The previous character.
+     * @throws NoSuchElementException if the cursor is at the start of the text.
+     */
+    public char previous() {
+        if (position <= 0) {
+            throw new NoSuchElementException();
+        }
+        int index = position - 1;
+        if (index < bufferStart || index >= bufferEnd) {
+            load(Math.max(0, position - BATCH_SIZE), position);
+        }
+        position = index;
+        return buffer[index - bufferStart];
+    }
+
+    /**
+     * Copies up to `count` characters after the cursor into `dst` and moves the cursor past them.
+     *
+     * @param dst      The destination array.
+     * @param dstBegin The index in `dst` the first character is written to.
+     * @param count    The maximum number of characters to copy.
+     * @return The number of characters copied, or -1 if the cursor is at the end of the text.
+     */
+    public int read(char[] dst, int dstBegin, int count) {
+        if (position >= length) {
+            return -1;
+        }
+        count = Math.min(count, length - position);
+        if (position >= bufferStart && position + count <= bufferEnd) {
+            System.arraycopy(buffer, position - bufferStart, dst, dstBegin, count);
+        } else {
+            editable.getChars(position, position + count, dst, dstBegin);
+        }
+        position += count;
+        return count;
+    }
+
+    private void load(int start, int end) {
+        editable.getChars(start, end, buffer, 0);
+        bufferStart = start;
+        bufferEnd = end;
+    }
+}
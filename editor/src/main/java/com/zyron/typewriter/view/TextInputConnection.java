@@ -1,6 +1,5 @@
 package com.zyron.typewriter.view;
 
-import android.text.Selection;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.inputmethod.BaseInputConnection;
@@ -15,6 +14,7 @@ public class TextInputConnection extends BaseInputConnection {
 
     private final CodeEditor editor;
     private final Editable editableText;
+    private final TextInputEditable inputEditable;
     private boolean isEditable = true;
 
     // Special key constants
@@ -29,6 +29,17 @@ public class TextInputConnection extends BaseInputConnection {
         }
         this.editor = editor;
         this.editableText = editor.getEditable();
+        this.inputEditable = new TextInputEditable(editableText);
+    }
+
+    /**
+     * Returns the editor's text as seen by the input method, without copying it.
+     *
+     * @return The adapter over the editor's Editable.
+     */
+    @Override
+    public android.text.Editable getEditable() {
+        return inputEditable;
     }
 
     /**
@@ -120,7 +131,11 @@ public class TextInputConnection extends BaseInputConnection {
 
                 case KeyEvent.KEYCODE_F:
                     if (event.isCtrlPressed()) {
-                        // TODO: Implement find/search
+                        String selectedText = editor.getSelectedText();
+                        if (selectedText != null && !selectedText.isEmpty()) {
+                            editor.onFind(selectedText, false);
+                        }
+                        editor.onFindNext();
                         return true;
                     }
                     break;
@@ -168,17 +183,8 @@ public class TextInputConnection extends BaseInputConnection {
     @Override
     public boolean setComposingText(CharSequence text, int newCursorPosition) {
         if (text != null) {
-            int composingStart = Selection.getSelectionStart(editableText);
-            int composingEnd = Selection.getSelectionEnd(editableText);
-
-            if (composingStart == composingEnd) {
-                editor.onInsert(text);  // Insert composing text
-            } else {
-                editableText.replace(composingStart, composingEnd, text);  // Replace composing text
-                editor.onInsert(editableText);
-            }
-
-            Selection.setSelection(editableText, newCursorPosition);  // Update cursor position
+            int start = replaceComposingText(text, newCursorPosition);
+            inputEditable.setComposingRegion(start, start + text.length());
             editor.invalidate();
         }
         return true;
@@ -186,30 +192,60 @@ public class TextInputConnection extends BaseInputConnection {
 
     @Override
     public boolean finishComposingText() {
+        inputEditable.clearComposingRegion();
         editor.invalidate();  // Commit composing text
-        return super.finishComposingText();
+        return true;
+    }
+
+    /*
+     * Replaces the composing region, or the selection if nothing is being composed, and puts the
+     * cursor where newCursorPosition asks: relative to the end of the new text if positive,
+     * otherwise relative to its start.
+     *
+     * @return the start of the new text
+     */
+    private int replaceComposingText(CharSequence text, int newCursorPosition) {
+        int start = inputEditable.getComposingStart();
+        int end = inputEditable.getComposingEnd();
+        if (start < 0 || end < 0) {
+            start = editableText.getSelectionStart();
+            end = editableText.getSelectionEnd();
+        }
+        if (start > end) {
+            int temp = start;
+            start = end;
+            end = temp;
+        }
+        inputEditable.replace(start, end, text);
+        int cursor = (newCursorPosition > 0)
+                ? start + text.length() + newCursorPosition - 1
+                : start + newCursorPosition;
+        cursor = Math.max(0, Math.min(cursor, editableText.length()));
+        editableText.setSelection(cursor, cursor);
+        editor.setCursorIndex(cursor);
+        return start;
     }
 
     // ------------------ Text retrieval methods ------------------
 
     @Override
     public CharSequence getTextBeforeCursor(int length, int flags) {
-        int start = Math.max(Selection.getSelectionStart(editableText) - length, 0);
-        int end = Selection.getSelectionStart(editableText);
+        int start = Math.max(editableText.getSelectionStart() - length, 0);
+        int end = editableText.getSelectionStart();
         return editableText.subSequence(start, end);
     }
 
     @Override
     public CharSequence getTextAfterCursor(int length, int flags) {
-        int start = Selection.getSelectionEnd(editableText);
+        int start = editableText.getSelectionEnd();
         int end = Math.min(start + length, editableText.length());
         return editableText.subSequence(start, end);
     }
 
     @Override
     public CharSequence getSelectedText(int flags) {
-        int start = Selection.getSelectionStart(editableText);
-        int end = Selection.getSelectionEnd(editableText);
+        int start = editableText.getSelectionStart();
+        int end = editableText.getSelectionEnd();
         if (start == end) {
             return null;
         }
@@ -220,7 +256,13 @@ public class TextInputConnection extends BaseInputConnection {
 
     @Override
     public boolean commitText(CharSequence text, int newCursorPosition) {
-        editor.onInsert(text);
+        if (inputEditable.getComposingStart() >= 0) {
+            // The composed text is replaced by the committed one, not added to
+            replaceComposingText(text, newCursorPosition);
+            inputEditable.clearComposingRegion();
+        } else {
+            editor.onInsert(text);
+        }
         editor.invalidate();
         return true;
     }
@@ -239,6 +281,7 @@ public class TextInputConnection extends BaseInputConnection {
 
     @Override
     public boolean setComposingRegion(int start, int end) {
+        inputEditable.setComposingRegion(start, end);
         return true;
     }
 
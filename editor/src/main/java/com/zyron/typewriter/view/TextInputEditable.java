@@ -0,0 +1,310 @@
+package com.zyron.typewriter.view;
+
+import android.text.InputFilter;
+import android.text.Selection;
+import android.text.Spanned;
+
+import com.zyron.typewriter.text.Editable;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+
+/**
+ * TextInputEditable adapts the editor's {@link Editable} to the {@link android.text.Editable}
+ * interface the input method framework works with. Text and selection are read from and written to
+ * the document directly, so the input method never sees a second copy of the text. The few other
+ * spans an input method sets, such as the composing region, are kept here and moved along as the
+ * text changes.
+ */
+public class TextInputEditable implements android.text.Editable {
+
+    private static final InputFilter[] NO_FILTERS = new InputFilter[0];
+    /* Marks the composing region among the spans, so that it follows edits like they do */
+    private static final Object COMPOSING = new Object();
+
+    private final Editable editableText;
+    private final ArrayList<Span> spans = new ArrayList<>();
+    private InputFilter[] filters = NO_FILTERS;
+
+    public TextInputEditable(Editable editableText) {
+        if (editableText == null) {
+            throw new IllegalArgumentException("Editable cannot be null");
+        }
+        this.editableText = editableText;
+    }
+
+    // ------------------ Editing methods ------------------
+
+    @Override
+    public android.text.Editable replace(int st, int en, CharSequence source, int start, int end) {
+        for (InputFilter filter : filters) {
+            CharSequence filtered = filter.filter(source, start, end, this, st, en);
+            if (filtered != null) {
+                source = filtered;
+                start = 0;
+                end = filtered.length();
+            }
+        }
+
+        int before = editableText.length();
+        editableText.replace(st, en, source.subSequence(start, end), true);
+        int newEnd = en + editableText.length() - before;
+        for (Span span : spans) {
+            span.start = adjust(span.start, st, en, newEnd);
+            span.end = adjust(span.end, st, en, newEnd);
+        }
+        return this;
+    }
+
+    /*
+     * Moves a span position across a replacement of [st, en) ending at newEnd afterwards.
+     */
+    private static int adjust(int position, int st, int en, int newEnd) {
+        if (position > en || (position == en && en > st)) {
+            return position + newEnd - en;
+        }
+        if (position > st) {
+            return Math.min(position, newEnd);
+        }
+        return position;
+    }
+
+    @Override
+    public android.text.Editable replace(int st, int en, CharSequence text) {
+        return replace(st, en, text, 0, text.length());
+    }
+
+    @Override
+    public android.text.Editable insert(int where, CharSequence text, int start, int end) {
+        return replace(where, where, text, start, end);
+    }
+
+    @Override
+    public android.text.Editable insert(int where, CharSequence text) {
+        return replace(where, where, text, 0, text.length());
+    }
+
+    @Override
+    public android.text.Editable delete(int st, int en) {
+        return replace(st, en, "", 0, 0);
+    }
+
+    @Override
+    public android.text.Editable append(CharSequence text) {
+        return replace(length(), length(), text, 0, text.length());
+    }
+
+    @Override
+    public android.text.Editable append(CharSequence text, int start, int end) {
+        return replace(length(), length(), text, start, end);
+    }
+
+    @Override
+    public android.text.Editable append(char text) {
+        return append(String.valueOf(text));
+    }
+
+    @Override
+    public void clear() {
+        replace(0, length(), "", 0, 0);
+    }
+
+    @Override
+    public void clearSpans() {
+        spans.clear();
+    }
+
+    @Override
+    public void setFilters(InputFilter[] filters) {
+        if (filters == null) {
+            throw new IllegalArgumentException("filters cannot be null");
+        }
+        this.filters = filters;
+    }
+
+    @Override
+    public InputFilter[] getFilters() {
+        return filters;
+    }
+
+    // ------------------ Composing region methods ------------------
+
+    /**
+     * Sets the region of text the input method is composing.
+     *
+     * @param start The start of the region.
+     * @param end   The end of the region.
+     */
+    public void setComposingRegion(int start, int end) {
+        int length = length();
+        setSpan(COMPOSING, Math.max(0, Math.min(Math.min(start, end), length)),
+                Math.max(0, Math.min(Math.max(start, end), length)), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+
+    /**
+     * Returns the start of the composing region, or -1 if there is none.
+     */
+    public int getComposingStart() {
+        return getSpanStart(COMPOSING);
+    }
+
+    /**
+     * Returns the end of the composing region, or -1 if there is none.
+     */
+    public int getComposingEnd() {
+        return getSpanEnd(COMPOSING);
+    }
+
+    /**
+     * Ends composing; the composed text stays as it is.
+     */
+    public void clearComposingRegion() {
+        removeSpan(COMPOSING);
+    }
+
+    // ------------------ Span methods ------------------
+
+    /*
+     * The selection spans map onto the selection of the Editable itself.
+     */
+    private static boolean isSelection(Object what) {
+        return what == Selection.SELECTION_START || what == Selection.SELECTION_END;
+    }
+
+    @Override
+    public void setSpan(Object what, int start, int end, int flags) {
+        if (isSelection(what)) {
+            int position = Math.max(0, Math.min(start, length()));
+            if (what == Selection.SELECTION_START) {
+                editableText.setSelection(position, editableText.getSelectionEnd());
+            } else {
+                editableText.setSelection(editableText.getSelectionStart(), position);
+            }
+            return;
+        }
+
+        Span span = findSpan(what);
+        if (span == null) {
+            span = new Span(what);
+            spans.add(span);
+        }
+        span.start = start;
+        span.end = end;
+        span.flags = flags;
+    }
+
+    @Override
+    public void removeSpan(Object what) {
+        Span span = findSpan(what);
+        if (span != null) {
+            spans.remove(span);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T[] getSpans(int start, int end, Class<T> type) {
+        if (type == null) {
+            type = (Class<T>) Object.class;
+        }
+        ArrayList<T> result = new ArrayList<>();
+        for (Span span : spans) {
+            if (span.start <= end && span.end >= start && type.isInstance(span.what)) {
+                result.add((T) span.what);
+            }
+        }
+        return result.toArray((T[]) Array.newInstance(type, result.size()));
+    }
+
+    @Override
+    public int getSpanStart(Object tag) {
+        if (tag == Selection.SELECTION_START) {
+            return editableText.getSelectionStart();
+        } else if (tag == Selection.SELECTION_END) {
+            return editableText.getSelectionEnd();
+        }
+        Span span = findSpan(tag);
+        return span != null ? span.start : -1;
+    }
+
+    @Override
+    public int getSpanEnd(Object tag) {
+        if (isSelection(tag)) {
+            return getSpanStart(tag);
+        }
+        Span span = findSpan(tag);
+        return span != null ? span.end : -1;
+    }
+
+    @Override
+    public int getSpanFlags(Object tag) {
+        if (isSelection(tag)) {
+            return Spanned.SPAN_POINT_POINT;
+        }
+        Span span = findSpan(tag);
+        return span != null ? span.flags : 0;
+    }
+
+    @Override
+    public int nextSpanTransition(int start, int limit, Class type) {
+        for (Span span : spans) {
+            if (type != null && !type.isInstance(span.what)) {
+                continue;
+            }
+            if (span.start > start && span.start < limit) {
+                limit = span.start;
+            }
+            if (span.end > start && span.end < limit) {
+                limit = span.end;
+            }
+        }
+        return limit;
+    }
+
+    private Span findSpan(Object what) {
+        for (Span span : spans) {
+            if (span.what == what) {
+                return span;
+            }
+        }
+        return null;
+    }
+
+    // ------------------ Text access methods ------------------
+
+    @Override
+    public int length() {
+        return editableText.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return editableText.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return editableText.subSequence(start, end);
+    }
+
+    @Override
+    public void getChars(int start, int end, char[] dest, int destoff) {
+        editableText.getChars(start, end, dest, destoff);
+    }
+
+    @Override
+    public String toString() {
+        return editableText.toString();
+    }
+
+    private static final class Span {
+        final Object what;
+        int start;
+        int end;
+        int flags;
+
+        Span(Object what) {
+            this.what = what;
+        }
+    }
+}
@@ -56,16 +56,29 @@ import com.zyron.typewriter.event.ScaleEvent;
 import com.zyron.typewriter.event.ScrollEvent;
 import com.zyron.typewriter.event.TouchEvent;
 import com.zyron.typewriter.text.Editable;
+import com.zyron.typewriter.text.EditableCursors;
+import com.zyron.typewriter.text.EditableFinder;
 import com.zyron.typewriter.text.EditableListener;
+import com.zyron.typewriter.text.EditableRegexFinder;
+import com.zyron.typewriter.text.EditableScheduler;
+import com.zyron.typewriter.text.EditableTransaction;
+import com.zyron.typewriter.text.EditableTrigramIndex;
 import com.zyron.typewriter.util.DisplayUtils;
 import com.zyron.typewriter.view.TextInputConnection;
 
-import java.util.ArrayList;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 public class CodeEditor extends View implements EditableListener {
 
     private CodeEditor codeEditor;
     private Editable editableText;
+    private EditableCursors editableCursors;
+    private EditableScheduler editableScheduler;
+    private EditableFinder editableFinder;
+    private EditableRegexFinder editableRegexFinder;
+    private EditableTrigramIndex editableTrigramIndex;
+    private boolean isFindIndexEnabled;
     private EditableListener editableListener;
     private EditorInterface editorInterface;
     private TouchEvent touchEvent;
@@ -81,7 +94,6 @@ public class CodeEditor extends View implements EditableListener {
     private ScaleGestureDetector scaleGestureDetector;
     private OverScroller scroller;
     private ClipboardManager clipboard;
-    private ArrayList replaceList;
     private Runnable blinkAction;
 
     // Paints
@@ -159,6 +171,8 @@ public class CodeEditor extends View implements EditableListener {
     private static final int MENU_ITEM_COPY = 1;
     private static final int MENU_ITEM_PASTE = 2;
     private static final int MENU_ITEM_CUT = 3;
+
+    private static final String TAG = "CodeEditor";
   
     
     public CodeEditor(Context context) {
@@ -185,7 +199,7 @@ public class CodeEditor extends View implements EditableListener {
         gestureEvent = new GestureEvent(this);
         scroller = new OverScroller(context);
         clipboard = (ClipboardManager) context.getSystemService(Context.CLIPBOARD_SERVICE);
-        replaceList = new ArrayList<>();  
+        editableCursors = new EditableCursors();
         verticalScrollBarRect = new RectF();
         horizontalScrollBarRect = new RectF();      
         edgeEffectVertical = new EdgeEffect(getContext());
@@ -261,8 +275,12 @@ public class CodeEditor extends View implements EditableListener {
         setOverScrollMode(OVER_SCROLL_ALWAYS);
     }
 
-    private void setEditable(Editable editable) {
+    public void setEditable(Editable editable) {
+        releaseFinder();
         this.editableText = editable;
+        if (isAttachedToWindow()) {
+            editableText.setEditableListener(this);
+        }
         invalidate();
     }
     
@@ -272,6 +290,7 @@ public class CodeEditor extends View implements EditableListener {
     }    
 
     public void setText(CharSequence text) {
+        releaseFinder();
         this.editableText = new Editable(text);
         invalidate();
     }
@@ -476,6 +495,18 @@ public class CodeEditor extends View implements EditableListener {
     public int getCursorIndex() {
         return cursorIndex;
     }
+
+    /**
+     * Moves the cursor to an offset, dropping the selection.
+     *
+     * @param index The offset, clamped to the text.
+     */
+    public void setCursorIndex(int index) {
+        cursorIndex = Math.max(0, Math.min(index, editableText.length()));
+        isSelectable = false;
+        invalidateCursorPosition();
+        invalidate();
+    }
     
     public int getCursorDropletWidth() {
         return cursorDropletWidth;
@@ -570,6 +601,10 @@ public class CodeEditor extends View implements EditableListener {
 
     public int getMeasuredText(String text) {
         return (int) Math.ceil(editableTextPaint.measureText(text));
+    }
+
+    public int getMeasuredText(char[] text, int index, int count) {
+        return (int) Math.ceil(editableTextPaint.measureText(text, index, count));
     }  
     
     public int getGutterWidth() {
@@ -586,6 +621,10 @@ public class CodeEditor extends View implements EditableListener {
         return editableText.getLineString(targetLineIndex);
     } 
     
+    public int getLineChars(int targetLineIndex, char[] dest, int destoff) {
+        return editableText.getLineChars(targetLineIndex, dest, destoff);
+    }
+
     public String getSelectedText() {
         return editableText.getSelectedText();
     }
@@ -651,10 +690,6 @@ public class CodeEditor extends View implements EditableListener {
         return blinkAction;
     }
        
-    public ArrayList getReplaceList() {
-        return replaceList;
-    }
-    
     @Override
     protected void onAttachedToWindow() {
         super.onAttachedToWindow();
@@ -664,6 +699,7 @@ public class CodeEditor extends View implements EditableListener {
     @Override
     protected void onDetachedFromWindow() {
         editableText.setEditableListener(null);
+        releaseFinder();
         super.onDetachedFromWindow();
     }    
 
@@ -843,6 +879,12 @@ public class CodeEditor extends View implements EditableListener {
     public void onInsert(CharSequence editable) {
         if(!isEditable) return;
         if(cursorIndex < 0) return;
+
+        if(editableCursors.size() > 1) {
+            if(editableCursors.insert(editableText, editable))
+                onCursorsChanged();
+            return;
+        }
    
         cursorIndex = cursorIndex;
         cursorLine = getLineOffset(cursorIndex);            
@@ -869,6 +911,12 @@ public class CodeEditor extends View implements EditableListener {
 
     public void onDelete() {
         if(!isEditable) return; 
+
+        if(editableCursors.size() > 1) {
+            if(editableCursors.delete(editableText))
+                onCursorsChanged();
+            return;
+        }
         if(cursorIndex <= 0) return;
         
         cursorIndex = cursorIndex;
@@ -905,6 +953,274 @@ public class CodeEditor extends View implements EditableListener {
         invalidate();       
     }
     
+    /**
+     * Commits a transaction of edits to the text, then moves the cursor over them and redraws
+     * once, however many edits the transaction holds.
+     *
+     * @param transaction A transaction from {@link Editable#beginTransaction()}.
+     * @return `true` if the edits were applied.
+     */
+    public boolean onCommit(EditableTransaction transaction) {
+        if(!isEditable) return false;
+        if(!transaction.commit()) return false;
+
+        cursorIndex = transaction.mapOffset(cursorIndex);
+        editableCursors.update(transaction);
+        invalidateCursorPosition();
+        invalidate();
+        return true;
+    }
+
+    /**
+     * Adds a cursor at the specified index. Once there is more than one cursor, typing and
+     * deleting apply to all of them in a single pass over the text.
+     *
+     * @param index The character index of the new cursor.
+     */
+    public void addCursor(int index) {
+        if(index < 0 || index > editableText.length()) return;
+        if(editableCursors.size() == 0)
+            editableCursors.add(cursorIndex);
+
+        editableCursors.add(index);
+        onCursorsChanged();
+    }
+
+    /**
+     * Removes every cursor but the primary one.
+     */
+    public void clearCursors() {
+        editableCursors.clear();
+        invalidate();
+    }
+
+    public EditableCursors getCursors() {
+        return editableCursors;
+    }
+
+    /*
+     * Follows the primary cursor after the cursors moved, looking up only its line.
+     */
+    private void onCursorsChanged() {
+        cursorIndex = editableCursors.getEnd(editableCursors.getPrimary());
+        invalidateCursorPosition();
+        invalidate();
+    }
+
+    /**
+     * Highlights every occurrence of a text. The text is searched in the background, starting
+     * with the visible lines, and the occurrences follow later edits.
+     *
+     * @param query      The text to find, or an empty one to clear the highlights.
+     * @param ignoreCase Whether to fold case when comparing.
+     */
+    public void onFind(String query, boolean ignoreCase) {
+        if(editableRegexFinder != null) editableRegexFinder.find(null);
+        getFinder().find(query, ignoreCase);
+        invalidate();
+    }
+
+    /**
+     * Highlights every match of a regular expression, where `^` and `$` match at every line. The
+     * text is searched in the background, starting with the visible lines, and a pattern that
+     * takes too long on part of the text skips that part rather than stalling.
+     *
+     * @param regex      The regular expression, or an empty one to clear the highlights.
+     * @param ignoreCase Whether to fold case when comparing.
+     * @return `false` if the expression is invalid.
+     */
+    public boolean onFindRegex(String regex, boolean ignoreCase) {
+        Pattern pattern = null;
+        if(regex != null && !regex.isEmpty()) {
+            int flags = Pattern.MULTILINE | (ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0);
+            try {
+                pattern = Pattern.compile(regex, flags);
+            } catch (PatternSyntaxException e) {
+                Log.e(TAG, "Invalid regular expression: " + e.getMessage());
+                return false;
+            }
+        }
+        if(editableFinder != null) editableFinder.find("", false);
+        getRegexFinder().find(pattern);
+        invalidate();
+        return true;
+    }
+
+    /**
+     * Selects the next occurrence of the current query after the cursor, wrapping around to the
+     * first one.
+     *
+     * @return `true` if an occurrence was selected.
+     */
+    public boolean onFindNext() {
+        int from = isSelectable ? selectionStart + 1 : cursorIndex;
+        int start = -1;
+        int end = -1;
+        if(isFindingRegex()) {
+            synchronized (editableRegexFinder) {
+                int count = editableRegexFinder.getMatchCount();
+                if(count == 0) return false;
+                int index = editableRegexFinder.findMatch(from);
+                // The first match ending after the cursor may start before it, then take the next
+                if (index < count && editableRegexFinder.getMatchStart(index) < from) {
+                    index++;
+                }
+                if (index >= count) {
+                    index = 0;
+                }
+                start = editableRegexFinder.getMatchStart(index);
+                end = editableRegexFinder.getMatchEnd(index);
+            }
+        } else if(editableFinder != null) {
+            synchronized (editableFinder) {
+                int count = editableFinder.getMatchCount();
+                if(count == 0) return false;
+                int index = editableFinder.findMatch(from);
+                start = editableFinder.getMatchStart((index < count) ? index : 0);
+                end = start + editableFinder.getMatchLength();
+            }
+        }
+        if(start < 0) return false;
+        invalidateSelectionRange(start, end);
+        isSelectable = true;
+        cursorIndex = end;
+        invalidateCursorPosition();
+        scrollToVisable();
+        invalidate();
+        return true;
+    }
+
+    /**
+     * Replaces every occurrence of the current query, or every match of the current regular
+     * expression, in a single pass that undoes as one step. Only the occurrences the finder has
+     * verified are replaced, so this does nothing while the search is still running or when it
+     * skipped part of the text.
+     *
+     * @param replacement The replacement. For a regular expression, `$n` and `${name}` stand for
+     *                    the groups of each match.
+     * @return The number of occurrences replaced, or -1 if the search is not complete or the
+     * replacement is invalid.
+     */
+    public int onReplaceAll(String replacement) {
+        int count;
+        if(isFindingRegex()) {
+            count = editableRegexFinder.replaceAll(replacement);
+        } else if(isFinding()) {
+            count = editableFinder.replaceAll(replacement);
+        } else {
+            return 0;
+        }
+        if(count > 0) {
+            isSelectable = false;
+            cursorIndex = editableText.getSelectionEnd();
+            invalidateCursorPosition();
+            scrollToVisable();
+            invalidate();
+        }
+        return count;
+    }
+
+    /**
+     * Checks if there are occurrences of a query to highlight.
+     */
+    public boolean isFinding() {
+        return (editableFinder != null && editableFinder.getQuery().length() > 0) || isFindingRegex();
+    }
+
+    /**
+     * Checks if the occurrences to highlight are those of a regular expression.
+     */
+    public boolean isFindingRegex() {
+        return editableRegexFinder != null && editableRegexFinder.getPattern() != null;
+    }
+
+    public EditableFinder getFinder() {
+        if(editableFinder == null) {
+            editableFinder = new EditableFinder(editableText, getScheduler());
+            editableFinder.setIndex(isFindIndexEnabled ? getTrigramIndex() : null);
+            editableFinder.setListener(new EditableFinder.Listener() {
+                @Override
+                public void onMatchesChanged(EditableFinder finder) {
+                    postInvalidate();
+                }
+            });
+        }
+        return editableFinder;
+    }
+
+    public EditableRegexFinder getRegexFinder() {
+        if(editableRegexFinder == null) {
+            editableRegexFinder = new EditableRegexFinder(editableText, getScheduler());
+            editableRegexFinder.setListener(new EditableRegexFinder.Listener() {
+                @Override
+                public void onMatchesChanged(EditableRegexFinder finder) {
+                    postInvalidate();
+                }
+            });
+        }
+        return editableRegexFinder;
+    }
+
+    /**
+     * Turns on or off the trigram index that narrows find down to the parts of the text that may
+     * match, worth its memory on very large documents. It is built in the background; without it,
+     * find scans the whole text.
+     *
+     * @param enabled Whether to index the text.
+     */
+    public void setFindIndexEnabled(boolean enabled) {
+        isFindIndexEnabled = enabled;
+        if(enabled) {
+            getTrigramIndex();
+        } else if(editableTrigramIndex != null) {
+            editableTrigramIndex.close();
+            editableTrigramIndex = null;
+        }
+        if(editableFinder != null) {
+            editableFinder.setIndex(editableTrigramIndex);
+        }
+    }
+
+    public boolean isFindIndexEnabled() {
+        return isFindIndexEnabled;
+    }
+
+    private EditableTrigramIndex getTrigramIndex() {
+        if(editableTrigramIndex == null) {
+            editableTrigramIndex = new EditableTrigramIndex(editableText, getScheduler());
+        }
+        return editableTrigramIndex;
+    }
+
+    private EditableScheduler getScheduler() {
+        if(editableScheduler == null) {
+            editableScheduler = new EditableScheduler(editableText);
+        }
+        return editableScheduler;
+    }
+
+    /*
+     * Stops searching, as the text is replaced or the view goes away.
+     */
+    private void releaseFinder() {
+        if(editableFinder != null) {
+            editableFinder.close();
+            editableFinder = null;
+        }
+        if(editableRegexFinder != null) {
+            editableRegexFinder.close();
+            editableRegexFinder = null;
+        }
+        if(editableTrigramIndex != null) {
+            editableTrigramIndex.close();
+            editableTrigramIndex = null;
+        }
+        if(editableScheduler != null) {
+            editableScheduler.shutdown();
+            editableScheduler = null;
+        }
+    }
+
     public boolean isUndo() {
         return editableText.isUndo();
     }
@@ -1009,6 +1325,8 @@ public class CodeEditor extends View implements EditableListener {
 
         if (System.currentTimeMillis() - lastTapTime >= 5 * BLINK_TIMEOUT) {
             isCursorDropletVisible = true;
+            // Idle, get the gap to the caret before the next keystroke needs it
+            editableText.positionGap(cursorIndex);
         }
         invalidate();
     }
@@ -1046,6 +1364,7 @@ public class CodeEditor extends View implements EditableListener {
 
     // set cursor position by coordinate
     public void setCursorPositionByCoordinate(float coordinateX, float coordinateY) {
+        editableCursors.clear();
         // calculation the cursor y coordinate
         cursorPositionY = (int) coordinateY / getLineHeight() * getLineHeight();
         int bottom = getLineCount() * getLineHeight();
@@ -18,10 +18,15 @@ package com.zyron.typewriter.widget;
 
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.text.TextPaint;
 import android.widget.EdgeEffect;
 import com.zyron.typewriter.text.Editable;
+import com.zyron.typewriter.text.EditableCursors;
+import com.zyron.typewriter.text.EditableFinder;
+import com.zyron.typewriter.text.EditableRegexFinder;
+import java.util.Arrays;
 
 /**
  * The EditorInterface class represents the editor user interface that is part of the CodeEditor class.
@@ -35,6 +40,12 @@ public class EditorInterface {
 
     public final CodeEditor editor;
 
+    // Reused while drawing so that text is drawn and measured without allocating per frame
+    private final Rect clipBounds = new Rect();
+    private final Paint.FontMetrics textMetrics = new Paint.FontMetrics();
+    private char[] lineChars = new char[256];
+    private int[] visibleMatches = new int[64];
+
     /**
      * Constructor for EditorInterface, which takes a CodeEditor instance to manage the editor's user interface.
      *
@@ -140,6 +151,7 @@ public class EditorInterface {
      */
     private void drawLineBackground(Canvas canvas) {
         drawCurrentLineBackground(canvas);
+        drawFindMatches(canvas);
     }
 
     /**
@@ -160,6 +172,7 @@ public class EditorInterface {
      */
     private void drawComponents(Canvas canvas) {
         drawGutterDividerLine(canvas);
+        drawCursors(canvas);
         drawCursor(canvas);
         drawSelectionDroplet(canvas);
     }
@@ -310,16 +323,26 @@ public class EditorInterface {
      */
     private void drawEditableString(Canvas canvas) {
         Paint editablePaint = editor.getEditableTextPaint();
-        TextPaint.FontMetrics metrics = editor.getEditableTextPaint().getFontMetrics();
+        TextPaint.FontMetrics metrics = textMetrics;
+        editablePaint.getFontMetrics(metrics);
         float textLineHeightOffset = (editor.getLineHeight() - (metrics.descent - metrics.ascent)) / 2 - metrics.ascent;
-        int startLine = Math.max(canvas.getClipBounds().top / editor.getLineHeight(), 1);
-        int endLine = Math.min(canvas.getClipBounds().bottom / editor.getLineHeight() + 1, editor.getLineCount());
+        canvas.getClipBounds(clipBounds);
+        int startLine = Math.max(clipBounds.top / editor.getLineHeight(), 1);
+        int endLine = Math.min(clipBounds.bottom / editor.getLineHeight() + 1, editor.getLineCount());
+        float offsetX = editor.getGutterWidth() + editor.getEditablePadding();
 
         for (int i = startLine; i <= endLine; i++) {
-            String text = editor.getLine(i);
-            float offsetX = editor.getGutterWidth() + editor.getEditablePadding();
+            int length = editor.getLineChars(i, lineChars, 0);
+            while (length > lineChars.length) {
+                // Too long to copy, grow and ask again as the line may change in between
+                lineChars = new char[Math.max(length, lineChars.length * 2)];
+                length = editor.getLineChars(i, lineChars, 0);
+            }
+            if (length <= 0) {
+                continue;
+            }
             float offsetY = (i - 1) * editor.getLineHeight() + textLineHeightOffset;
-            canvas.drawText(text, offsetX, offsetY, editablePaint);
+            canvas.drawText(lineChars, 0, length, offsetX, offsetY, editablePaint);
         } 
     }
 
@@ -356,6 +379,152 @@ public class EditorInterface {
         }
     }
 
+    /**
+     * Draws the secondary cursors that are on the visible lines. The cursors are sorted by index,
+     * so only the visible ones are looked up and measured.
+     *
+     * @param canvas The canvas on which the cursors will be drawn.
+     */
+    private void drawCursors(Canvas canvas) {
+        EditableCursors cursors = editor.getCursors();
+        if (cursors.size() <= 1 || !editor.getIsCursorVisible()) {
+            return;
+        }
+        canvas.getClipBounds(clipBounds);
+        int startLine = Math.max(clipBounds.top / editor.getLineHeight(), 1);
+        int endLine = Math.min(clipBounds.bottom / editor.getLineHeight() + 1, editor.getLineCount());
+        int startIndex = editor.getLineStart(startLine);
+        int endIndex = editor.getLineStart(endLine) + editor.getLineLength(endLine);
+
+        // First cursor at or after the first visible line
+        int low = 0;
+        int high = cursors.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cursors.getEnd(mid) < startIndex) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        Paint cursorPaint = editor.getCursorPaint();
+        int primary = cursors.getPrimary();
+        for (int i = low; i < cursors.size() && cursors.getEnd(i) <= endIndex; i++) {
+            if (i == primary) {
+                continue;
+            }
+            int index = cursors.getEnd(i);
+            int line = editor.getLineOffset(index);
+            int lineStart = editor.getLineStart(line);
+            int count = copyRange(editor.getEditable(), lineStart, index);
+            if (count < 0) {
+                continue;
+            }
+            float x = editor.getGutterWidth() + editor.getMeasuredText(lineChars, 0, count) + 5.5f;
+            float y = (line - 1) * editor.getLineHeight();
+            canvas.drawLine(x, y, x, y + editor.getLineHeight(), cursorPaint);
+        }
+    }
+
+    /**
+     * Highlights the occurrences of the find query or pattern on the visible lines, and tells the
+     * finder which lines are visible so it searches them first.
+     *
+     * @param canvas The canvas on which the occurrences will be drawn.
+     */
+    private void drawFindMatches(Canvas canvas) {
+        if (!editor.isFinding()) {
+            return;
+        }
+        canvas.getClipBounds(clipBounds);
+        int startLine = Math.max(clipBounds.top / editor.getLineHeight(), 1);
+        int endLine = Math.min(clipBounds.bottom / editor.getLineHeight() + 1, editor.getLineCount());
+        int startIndex = editor.getLineStart(startLine);
+        int endIndex = editor.getLineStart(endLine) + editor.getLineLength(endLine);
+
+        // Copied out first, the finders are locked inside edits and must not wait on the text
+        int count = 0;
+        if (editor.isFindingRegex()) {
+            EditableRegexFinder regexFinder = editor.getRegexFinder();
+            regexFinder.setViewport(startIndex, endIndex);
+            synchronized (regexFinder) {
+                for (int i = regexFinder.findMatch(startIndex); i < regexFinder.getMatchCount(); i++) {
+                    int start = regexFinder.getMatchStart(i);
+                    if (start > endIndex) {
+                        break;
+                    }
+                    count = addVisibleMatch(count, start, regexFinder.getMatchEnd(i));
+                }
+            }
+        } else {
+            EditableFinder finder = editor.getFinder();
+            finder.setViewport(startIndex, endIndex);
+            synchronized (finder) {
+                int length = finder.getMatchLength();
+                for (int i = finder.findMatch(Math.max(0, startIndex - length + 1)); i < finder.getMatchCount(); i++) {
+                    int start = finder.getMatchStart(i);
+                    if (start > endIndex) {
+                        break;
+                    }
+                    count = addVisibleMatch(count, start, start + length);
+                }
+            }
+        }
+
+        Editable editable = editor.getEditable();
+        Paint paint = editor.getSelectionLineBackgroundPaint();
+        int lineHeight = editor.getLineHeight();
+        for (int i = 0; i < count; i += 2) {
+            int start = visibleMatches[i];
+            if (visibleMatches[i + 1] > editable.length()) {
+                break;
+            }
+            // A match over several lines is highlighted up to the end of its first line
+            int line = editor.getLineOffset(start);
+            int lineStart = editor.getLineStart(line);
+            int end = Math.max(start, Math.min(visibleMatches[i + 1], lineStart + editor.getLineLength(line)));
+            // One copy of the line up to the end of the match serves both measurements
+            if (start < lineStart || copyRange(editable, lineStart, end) < 0) {
+                break;
+            }
+            float left = editor.getGutterWidth() + editor.getMeasuredText(lineChars, 0, start - lineStart);
+            float right = left + editor.getMeasuredText(lineChars, start - lineStart, end - start);
+            float top = editor.getPaddingTop() + (line - 1) * lineHeight;
+            canvas.drawRoundRect(left, top, right, top + lineHeight, 5, 5, paint);
+        }
+    }
+
+    /**
+     * Copies the range [start, end) of the text into the reused line buffer, so it can be measured
+     * without allocating. The bounds are checked under the lock of the copy, as the text may have
+     * changed since the offsets were read.
+     *
+     * @return The number of characters copied, or -1 if the range is no longer in the text.
+     */
+    private int copyRange(Editable editable, int start, int end) {
+        synchronized (editable) {
+            if (start < 0 || end > editable.length() || start > end) {
+                return -1;
+            }
+            int count = end - start;
+            if (count > lineChars.length) {
+                lineChars = new char[Math.max(count, lineChars.length * 2)];
+            }
+            editable.getChars(start, end, lineChars, 0);
+            return count;
+        }
+    }
+
+    private int addVisibleMatch(int count, int start, int end) {
+        if (count + 2 > visibleMatches.length) {
+            visibleMatches = Arrays.copyOf(visibleMatches, visibleMatches.length * 2);
+        }
+        visibleMatches[count] = start;
+        visibleMatches[count + 1] = end;
+        return count + 2;
+    }
+
     /**
      * Draws the selection droplets that allow users to adjust the selected text range by dragging
      * the handles.